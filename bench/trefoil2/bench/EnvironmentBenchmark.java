@@ -0,0 +1,51 @@
+package trefoil2.bench;
+
+import org.openjdk.jmh.annotations.*;
+import trefoil2.Expression;
+import trefoil2.Interpreter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of extending a DynamicEnvironment, and of looking a name up in it, as the environment grows.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnvironmentBenchmark {
+    // number of variables already in the environment
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private Interpreter.DynamicEnvironment env;
+    private Expression value;
+    private String lookup;
+
+    @Setup
+    public void setup() {
+        env = Interpreter.DynamicEnvironment.empty();
+        for (int i = 0; i < size; i++) {
+            env = env.extendVariable("x" + i, Expression.ofInt(i));
+        }
+        value = Expression.ofInt(42);
+        lookup = "x" + (size / 2);
+    }
+
+    @Benchmark
+    public Interpreter.DynamicEnvironment extendVariable() {
+        return env.extendVariable("y", value);
+    }
+
+    @Benchmark
+    public Interpreter.DynamicEnvironment extendExisting() {
+        return env.extendVariable(lookup, value);
+    }
+
+    @Benchmark
+    public Expression getVariable() {
+        return env.getVariable(lookup);
+    }
+}
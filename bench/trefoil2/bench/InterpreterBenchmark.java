@@ -0,0 +1,71 @@
+package trefoil2.bench;
+
+import org.openjdk.jmh.annotations.*;
+import trefoil2.Binding;
+import trefoil2.Expression;
+import trefoil2.Interpreter;
+import trefoil2.Output;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Interpreter.interpretExpression on representative workloads, for each execution engine.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xss16m")
+@State(Scope.Benchmark)
+public class InterpreterBenchmark {
+    @Param({"TREE", "CLOSURE", "STACK", "BYTECODE", "JVM", "TIERED"})
+    public String engine;
+
+    // number of global variables defined before the wide-environment workload runs
+    private static final int WIDE = 10000;
+
+    private Interpreter.DynamicEnvironment env;
+    private Expression fib;
+    private Expression listBuildAndTraverse;
+    private Expression deepLet;
+    private Expression wideEnvironment;
+
+    @Setup
+    public void setup() {
+        Interpreter.setEngine(Interpreter.Engine.parse(engine));
+        Interpreter.setOutput(Output.DISCARD);
+        env = Interpreter.DynamicEnvironment.empty();
+        env = Interpreter.interpretBinding(Binding.parseString(Programs.FIB), env);
+        env = Interpreter.interpretBinding(Binding.parseString(Programs.RANGE), env);
+        env = Interpreter.interpretBinding(Binding.parseString(Programs.SUM), env);
+        env = env.extendVariable("v0", Expression.ofInt(0));
+        for (int i = 0; i < WIDE; i++) {
+            env = env.extendVariable("g" + i, Expression.ofInt(i));
+        }
+
+        fib = Expression.parseString("(fib 20)");
+        listBuildAndTraverse = Expression.parseString("(sum (range 1000))");
+        deepLet = Expression.parseString(Programs.deepLet(500));
+        wideEnvironment = Expression.parseString("(+ g0 (+ g" + (WIDE / 2) + " (+ g" + (WIDE - 1) + " g1234)))");
+    }
+
+    @Benchmark
+    public Expression fib() {
+        return Interpreter.interpretExpression(fib, env);
+    }
+
+    @Benchmark
+    public Expression listBuildAndTraverse() {
+        return Interpreter.interpretExpression(listBuildAndTraverse, env);
+    }
+
+    @Benchmark
+    public Expression deepLet() {
+        return Interpreter.interpretExpression(deepLet, env);
+    }
+
+    @Benchmark
+    public Expression wideEnvironment() {
+        return Interpreter.interpretExpression(wideEnvironment, env);
+    }
+}
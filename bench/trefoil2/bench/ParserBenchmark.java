@@ -0,0 +1,54 @@
+package trefoil2.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import parser.PSTParser;
+import trefoil2.Expression;
+import trefoil2.ParenthesizedSymbolTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the front end: text to PSTs (PSTParser.parse), and PSTs to ASTs (Expression.parsePST).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserBenchmark {
+    // number of top-level forms in the input
+    @Param({"1000", "100000"})
+    public int forms;
+
+    private String program;
+    private List<ParenthesizedSymbolTree> psts;
+
+    @Setup
+    public void setup() {
+        program = Programs.largeProgram(forms);
+        psts = new ArrayList<>();
+        PSTParser parser = PSTParser.parseString(program);
+        for (ParenthesizedSymbolTree pst = parser.parse(); pst != null; pst = parser.parse()) {
+            psts.add(pst);
+        }
+    }
+
+    @Benchmark
+    public void parsePSTs(Blackhole bh) {
+        PSTParser parser = PSTParser.parseString(program);
+        for (ParenthesizedSymbolTree pst = parser.parse(); pst != null; pst = parser.parse()) {
+            bh.consume(pst);
+        }
+    }
+
+    @Benchmark
+    public void parseExpressions(Blackhole bh) {
+        for (ParenthesizedSymbolTree pst : psts) {
+            bh.consume(Expression.parsePST(pst));
+        }
+    }
+}
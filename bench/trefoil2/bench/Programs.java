@@ -0,0 +1,47 @@
+package trefoil2.bench;
+
+/**
+ * Trefoil source text for the benchmarks.
+ */
+class Programs {
+    static final String FIB =
+            "(define (fib n) (if (= n 0) 0 (if (= n 1) 1 (+ (fib (- n 1)) (fib (- n 2))))))";
+
+    static final String RANGE =
+            "(define (range n) (if (= n 0) nil (cons n (range (- n 1)))))";
+
+    static final String SUM =
+            "(define (sum l) (if (nil? l) 0 (+ (car l) (sum (cdr l)))))";
+
+    /**
+     * Returns a program of n top-level expressions, each a few levels of nested arithmetic,
+     * conditionals, and lets, with a comment every so often.
+     */
+    static String largeProgram(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            if (i % 10 == 0) {
+                sb.append("; expression ").append(i).append('\n');
+            }
+            sb.append("(let ((x").append(i).append(' ').append(i).append(")) ")
+                    .append("(if (= x").append(i).append(" 0) (cons x").append(i).append(" nil) ")
+                    .append("(+ (* x").append(i).append(" 2) (- x").append(i).append(" 1))))\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns an expression that nests depth lets, each binding a new variable to the previous one plus 1.
+     */
+    static String deepLet(int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append("(let ((v").append(i + 1).append(" (+ v").append(i).append(" 1))) ");
+        }
+        sb.append("v").append(depth);
+        for (int i = 0; i < depth; i++) {
+            sb.append(')');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,185 @@
+package parser;
+
+import trefoil2.ParenthesizedSymbolTree;
+import trefoil2.Trefoil2;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Constructs ParenthesizedSymbolTrees from input that arrives in pieces, without blocking.
+ *
+ * Unlike PSTParser, which pulls characters from a Reader, clients push UTF-8 bytes in with feed()
+ * whenever they arrive, and then call drainCompletedPSTs() to collect the PSTs that are complete
+ * so far. A top-level node is complete as soon as its closing paren has been fed. A top-level
+ * symbol is complete once the character after it has been fed (or at finish()), since until then
+ * more characters of it might still arrive.
+ *
+ * All the parse state lives in this object between calls: the stack of nodes that have been opened
+ * but not yet closed, the characters of a symbol that has been started, whether we are inside a
+ * comment, and any bytes of a UTF-8 character that has only partly arrived.
+ *
+ * Errors are reported in order with the PSTs around them: see drainCompletedPSTs().
+ */
+public class IncrementalPSTParser {
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(1 << 13);
+    private ByteBuffer leftover = null;  // the start of a UTF-8 character whose other bytes have not arrived yet
+
+    // The parse state. Each element of the stack is the list of children of a node that is still open.
+    private final ArrayList<List<ParenthesizedSymbolTree>> stack = new ArrayList<>();
+    private char[] symbol = new char[64];
+    private int symbolLength = 0;  // 0 iff not in the middle of a symbol
+    private boolean inComment = false;
+    private int lineNumber = 1;
+    private int columnNumber = -1;
+
+    // Completed PSTs and errors, in input order. Each element is a ParenthesizedSymbolTree or a TrefoilError.
+    private final ArrayDeque<Object> completed = new ArrayDeque<>();
+
+    /**
+     * Parses the remaining bytes of input as far as possible. Consumes all of input.
+     */
+    public void feed(ByteBuffer input) {
+        ByteBuffer in = input;
+        if (leftover != null) {
+            in = ByteBuffer.allocate(leftover.remaining() + input.remaining());
+            in.put(leftover).put(input).flip();
+            leftover = null;
+        }
+        decode(in, false);
+        if (in.hasRemaining()) {
+            leftover = ByteBuffer.allocate(in.remaining());
+            leftover.put(in).flip();
+        }
+    }
+
+    /**
+     * Signals the end of the input. Completes a symbol at the very end of the input, and reports an
+     * error if any nodes are still open.
+     *
+     * After finish(), the parser is ready for a new input stream.
+     */
+    public void finish() {
+        decode(leftover == null ? ByteBuffer.allocate(0) : leftover, true);
+        leftover = null;
+        decoder.reset();
+        endSymbol();
+        inComment = false;
+        if (stack.size() > 0) {
+            stack.clear();
+            completed.add(new Trefoil2.TrefoilError.ParenthesizedSyntaxError(
+                    "Unexpected EOF " + new Tokenizer.Token.EOFToken(lineNumber, columnNumber + 1)));
+        }
+    }
+
+    /**
+     * Returns the PSTs completed so far, in input order, and removes them from the parser.
+     *
+     * If the input had a syntax error, the PSTs before the error are returned first. Once those have
+     * been drained, the next call throws the error (and forgets it), and calls after that go on with the
+     * PSTs after the error. This is just like calling PSTParser.parse() repeatedly.
+     */
+    public List<ParenthesizedSymbolTree> drainCompletedPSTs() {
+        if (!completed.isEmpty() && completed.peekFirst() instanceof Trefoil2.TrefoilError) {
+            throw (Trefoil2.TrefoilError) completed.removeFirst();
+        }
+        List<ParenthesizedSymbolTree> result = new ArrayList<>();
+        while (!completed.isEmpty() && completed.peekFirst() instanceof ParenthesizedSymbolTree) {
+            result.add((ParenthesizedSymbolTree) completed.removeFirst());
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether there is nothing left to drain.
+     */
+    public boolean isDrained() {
+        return completed.isEmpty();
+    }
+
+    private void decode(ByteBuffer in, boolean endOfInput) {
+        CoderResult result;
+        do {
+            result = decoder.decode(in, chars, endOfInput);
+            scanDecoded();
+        } while (result.isOverflow());
+        if (endOfInput) {
+            do {
+                result = decoder.flush(chars);
+                scanDecoded();
+            } while (result.isOverflow());
+        }
+    }
+
+    private void scanDecoded() {
+        chars.flip();
+        scan(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining());
+        chars.clear();
+    }
+
+    // The same state machine as Tokenizer.advanceKind() and PSTParser.parse(), one character at a time.
+    private void scan(char[] buffer, int start, int length) {
+        for (int i = start; i < start + length; i++) {
+            char c = buffer[i];
+            columnNumber++;
+            if (c == '\n') {
+                lineNumber++;
+                columnNumber = -1;
+            }
+            if (inComment) {
+                inComment = c != '\n';
+            } else if (Tokenizer.isSymbolCharacter(c)) {
+                if (symbolLength == symbol.length) {
+                    symbol = Arrays.copyOf(symbol, symbol.length * 2);
+                }
+                symbol[symbolLength++] = c;
+            } else {
+                endSymbol();
+                if (c == '(') {
+                    stack.add(new ArrayList<>());
+                } else if (c == ')') {
+                    closeNode();
+                } else if (c == ';') {
+                    inComment = true;
+                }
+                // otherwise, whitespace
+            }
+        }
+    }
+
+    private void endSymbol() {
+        if (symbolLength > 0) {
+            add(new ParenthesizedSymbolTree.Symbol(SymbolTable.intern(symbol, 0, symbolLength)));
+            symbolLength = 0;
+        }
+    }
+
+    private void closeNode() {
+        if (stack.size() < 1) {
+            completed.add(new Trefoil2.TrefoilError.ParenthesizedSyntaxError(
+                    "Too many close parentheses: " + new Tokenizer.Token.PunctuationToken(")", lineNumber, columnNumber)));
+            return;
+        }
+        add(new ParenthesizedSymbolTree.Node(stack.remove(stack.size() - 1)));
+    }
+
+    // Adds pst to the node on the top of the stack, or, if there is none, completes it.
+    private void add(ParenthesizedSymbolTree pst) {
+        if (stack.size() == 0) {
+            completed.add(pst);
+        } else {
+            stack.get(stack.size() - 1).add(pst);
+        }
+    }
+}
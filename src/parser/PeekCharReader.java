@@ -6,6 +6,7 @@ import trefoil2.Trefoil2;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.Arrays;
 
 /**
  * Wraps a Reader so that the most recently read character is buffered in the next field.
@@ -14,8 +15,14 @@ import java.io.StringReader;
  *
  * Clients can call getNext() to look at the "next" character. advance() causes the next
  * character to be consumed and another character to be read from the underlying source.
+ *
+ * Input is read from the underlying Reader in large chunks into a char[] buffer, so reading a
+ * character is usually just an array access. skipWhitespace(), skipLine(), and takeSymbol()
+ * consume whole runs of characters at once by scanning the buffer directly.
  */
 public class PeekCharReader {
+    private static final int CHUNK_SIZE = 1 << 16;
+
     /**
      * The next character available on the input, or -1 if EOF.
      */
@@ -27,22 +34,153 @@ public class PeekCharReader {
     private int columnNumber = -1;
     private final Reader reader;
 
+    // The characters read so far but not yet consumed. next is buffer[position] unless at EOF.
+    private char[] buffer;
+    private int position = -1;
+    private int limit = 0;
+    private boolean eof = false;
+    private long discarded = 0;  // number of characters that have been moved out of the front of buffer
+
     public PeekCharReader(Reader reader) {
         this.reader = reader;
+        this.buffer = new char[CHUNK_SIZE];
+        advance();
+    }
+
+    /**
+     * Reads the characters text[start...end) directly, without copying them.
+     *
+     * lineNumber and columnNumber are the position just before text[start] (as returned by
+     * getLineNumber() and getColumnNumber() when text[start - 1] was next), so that positions
+     * are reported relative to the whole text. Offsets are indices into text.
+     */
+    public PeekCharReader(char[] text, int start, int end, int lineNumber, int columnNumber) {
+        this.reader = null;
+        this.buffer = text;
+        this.position = start - 1;
+        this.limit = end;
+        this.eof = true;  // never read, so never move or overwrite text
+        this.lineNumber = lineNumber;
+        this.columnNumber = columnNumber;
         advance();
     }
 
     public int advance() {
-        try {
-            // System.out.println("  reading...");
-            next = reader.read();
-            // System.out.println("  ...read '" + (char)next + "'");
+        position++;
+        next = position < limit || fill(position) ? buffer[position] : -1;
+        columnNumber++;
+        if (next == '\n') {
+            lineNumber++;
+            columnNumber = -1;
+        }
+        return next;
+    }
+
+    /**
+     * Returns the offset of next in the input, counting in chars from 0.
+     */
+    public long getOffset() {
+        return discarded + position;
+    }
+
+    /**
+     * Consumes whitespace characters until next is not whitespace.
+     */
+    public void skipWhitespace() {
+        while (next != -1 && Character.isWhitespace(next)) {
+            int i = position + 1;
+            while (i < limit && Character.isWhitespace(buffer[i])) {
+                i++;
+            }
+            // buffer[i] is the first non-whitespace character, or we need to read more
+            countLines(position + 1, i);
+            position = i - 1;
+            advance();
+        }
+    }
+
+    /**
+     * Consumes characters until next is a newline or EOF.
+     */
+    public void skipLine() {
+        while (next != -1 && next != '\n') {
+            int i = position + 1;
+            while (i < limit && buffer[i] != '\n') {
+                i++;
+            }
+            columnNumber += i - 1 - position;
+            position = i - 1;
+            advance();
+        }
+    }
+
+    /**
+     * Consumes the symbol that starts with next and returns it.
+     *
+     * A symbol is a run of characters for which Tokenizer.isSymbolCharacter holds. Once the symbol
+     * has been scanned, it is looked up in the SymbolTable directly from the buffer, so a symbol
+     * that has been seen before is not copied at all.
+     */
+    public String takeSymbol() {
+        int length = 0;
+        while (true) {
+            int i = position + length;
+            while (i < limit && Tokenizer.isSymbolCharacter(buffer[i])) {
+                i++;
+            }
+            length = i - position;
+            if (i < limit || !fill(position)) {
+                break;
+            }
+            // the symbol continues into the newly read input, which fill() put right after it
+        }
+        String symbol = SymbolTable.intern(buffer, position, length);
+        columnNumber += length - 1;
+        position += length - 1;
+        advance();
+        return symbol;
+    }
+
+    // Updates the line and column number for consuming buffer[from...to), none of which is next.
+    private void countLines(int from, int to) {
+        for (int i = from; i < to; i++) {
             columnNumber++;
-            if (next == '\n') {
+            if (buffer[i] == '\n') {
                 lineNumber++;
                 columnNumber = -1;
             }
-            return next;
+        }
+    }
+
+    /**
+     * Reads more input into the buffer. Keeps buffer[keep...limit), moving it to the start of the buffer
+     * (and adjusting position to match). Returns false at EOF.
+     */
+    private boolean fill(int keep) {
+        if (eof) {
+            return false;
+        }
+        int kept = limit - keep;
+        if (keep > 0) {
+            System.arraycopy(buffer, keep, buffer, 0, kept);
+            discarded += keep;
+            position -= keep;
+            limit = kept;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        try {
+            int n;
+            do {
+                n = reader.read(buffer, limit, buffer.length - limit);
+            } while (n == 0);
+            if (n < 0) {
+                eof = true;
+                return false;
+            }
+            limit += n;
+            return true;
         } catch (IOException e) {
             throw new Trefoil2.InternalInterpreterError(e);
         }
@@ -0,0 +1,158 @@
+package parser;
+
+/**
+ * The global table of interned symbols.
+ *
+ * The tokenizer looks every symbol up here straight from its input buffer, so a symbol that has
+ * been seen before costs no allocation at all, and all occurrences of a symbol are the very same
+ * String object. The table starts out holding the Java string literals for the keywords, like "let",
+ * so those symbols are identical to the literals, and String.equals/switch on them succeed on the
+ * first (identity) check.
+ *
+ * Symbols are never removed, and the table is shared by everything parsed in the JVM, so two things
+ * keep it from growing without bound in a long-running process (see trefoil2.JobRunner):
+ * - integer literals are not interned, since they are parsed into numbers right away, and programs
+ *   are full of distinct ones, and
+ * - once the table holds MAX_SIZE symbols, new symbols are returned as fresh Strings, not interned.
+ * Interning only saves allocation, so neither changes what a program means.
+ *
+ * Lookups do not lock. Insertions synchronize on the class and publish a new array when the table
+ * grows. A lookup that races with an insertion may miss the new entry, but then it takes the
+ * locked path and finds it there.
+ */
+public final class SymbolTable {
+    // The number of symbols after which new ones are no longer interned.
+    static final int MAX_SIZE = 1 << 16;
+
+    private static volatile String[] table = new String[1024];
+    private static int size = 0;  // guarded by SymbolTable.class
+
+    static {
+        for (String keyword : new String[]{
+                "define", "test", "let", "if", "cons", "car", "cdr", "cons?", "nil?", "max",
+                "+", "-", "*", "=", "true", "false", "nil"}) {
+            put(table, keyword);
+            size++;
+        }
+    }
+
+    private SymbolTable() {
+    }
+
+    /**
+     * Returns the interned symbol whose characters are chars[offset...offset+length), or a new String
+     * of them if it is an integer literal or the table is full.
+     */
+    public static String intern(char[] chars, int offset, int length) {
+        if (isInteger(chars, offset, length)) {
+            return new String(chars, offset, length);
+        }
+        int hash = hash(chars, offset, length);
+        String symbol = find(table, hash, chars, offset, length);
+        if (symbol != null) {
+            return symbol;
+        }
+        return insert(hash, chars, offset, length);
+    }
+
+    /**
+     * Returns the interned symbol equal to s (see intern(char[], int, int)).
+     */
+    public static String intern(String s) {
+        char[] chars = s.toCharArray();
+        return intern(chars, 0, chars.length);
+    }
+
+    public static synchronized int size() {
+        return size;
+    }
+
+    // The same as String.hashCode, so the hash of an entry is its (cached) hashCode().
+    private static int hash(char[] chars, int offset, int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + chars[i];
+        }
+        return h;
+    }
+
+    private static String find(String[] t, int hash, char[] chars, int offset, int length) {
+        int mask = t.length - 1;
+        for (int i = mix(hash) & mask; ; i = (i + 1) & mask) {
+            String s = t[i];
+            if (s == null) {
+                return null;
+            }
+            if (s.hashCode() == hash && sameCharacters(s, chars, offset, length)) {
+                return s;
+            }
+        }
+    }
+
+    private static synchronized String insert(int hash, char[] chars, int offset, int length) {
+        String[] t = table;
+        String symbol = find(t, hash, chars, offset, length);
+        if (symbol != null) {
+            return symbol;  // inserted since we looked
+        }
+        symbol = new String(chars, offset, length);
+        if (size >= MAX_SIZE) {
+            return symbol;
+        }
+        if (2 * (size + 1) > t.length) {
+            // keep the table at most half full
+            String[] bigger = new String[t.length * 2];
+            for (String s : t) {
+                if (s != null) {
+                    put(bigger, s);
+                }
+            }
+            put(bigger, symbol);
+            table = bigger;
+        } else {
+            put(t, symbol);
+        }
+        size++;
+        return symbol;
+    }
+
+    private static void put(String[] t, String s) {
+        int mask = t.length - 1;
+        int i = mix(s.hashCode()) & mask;
+        while (t[i] != null) {
+            i = (i + 1) & mask;
+        }
+        t[i] = s;
+    }
+
+    // Whether the characters are an optional sign and then digits, like Expression reads as an integer.
+    private static boolean isInteger(char[] chars, int offset, int length) {
+        int start = length > 1 && (chars[offset] == '-' || chars[offset] == '+') ? 1 : 0;
+        if (start == length) {
+            return false;
+        }
+        for (int i = start; i < length; i++) {
+            if (chars[offset + i] < '0' || chars[offset + i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Spreads the high bits of String.hashCode into the low bits used for indexing, as HashMap does.
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean sameCharacters(String s, char[] chars, int offset, int length) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != chars[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -83,59 +83,115 @@ public class Tokenizer {
         }
     }
 
+    /*
+     * Token kinds, for the allocation-free token stream. See advanceKind().
+     */
+    public static final int OPEN = 0;
+    public static final int CLOSE = 1;
+    public static final int SYMBOL = 2;
+    public static final int EOF = 3;
+
     @Getter
     private Token next;  // initially null, indicating not-yet-consumed-any-input
 
     private final PeekCharReader reader;
 
+    // The current token, as of the last call to advanceKind() (or advance()).
+    @Getter
+    private int kind = -1;  // initially -1, indicating not-yet-consumed-any-input
+    @Getter
+    private String symbol;  // interned (see SymbolTable); null unless kind == SYMBOL
+    @Getter
+    private long offset;  // offset of the first character of the token in the input
+    @Getter
+    private int length;  // number of characters in the token (0 for EOF)
+    private int lineNumber;
+    private int columnNumber;
+
     public Tokenizer(PeekCharReader reader) {
         this.reader = reader;
         next = null;
     }
 
+    /**
+     * Returns whether c can be part of a symbol, i.e., it does not end one.
+     * A symbol is terminated by EOF, whitespace, parenthesis, or semicolon.
+     *
+     * WARNING: this should be kept in sync with the if-else chain in advanceKind()
+     */
+    static boolean isSymbolCharacter(int c) {
+        return c != -1 && !Character.isWhitespace(c) && c != '(' && c != ')' && c != ';';
+    }
+
     /**
      * Consume the next token and scan underlying input until another token can be constructed.
      */
     public Token advance() {
+        advanceKind();
+        next = currentToken();
+        // System.out.println("advanced to token " + next);
+        return next;
+    }
+
+    /**
+     * Like advance(), but does not construct a Token object. Returns the kind of the new token
+     * (OPEN, CLOSE, SYMBOL, or EOF). Its symbol, offset, and length are available from the getters.
+     *
+     * Symbols are interned, so tokenizing input made of symbols that have already been seen
+     * allocates nothing. getNext() is only updated by advance().
+     */
+    public int advanceKind() {
         int c;
         while (true) {
             c = reader.getNext();
+            lineNumber = reader.getLineNumber();
+            columnNumber = reader.getColumnNumber();
+            offset = reader.getOffset();
             if (c == -1) {
-                next = new Token.EOFToken(reader.getLineNumber(), reader.getColumnNumber());
-                break;
+                return setToken(EOF, null, 0);
             } else if (Character.isWhitespace(c)) {  // skip whitespace
-                reader.advance();
+                reader.skipWhitespace();
                 // go around the loop
             } else if (c == '(') {
-                next = new Token.PunctuationToken("(", reader.getLineNumber(), reader.getColumnNumber());
                 reader.advance();
-                break;
+                return setToken(OPEN, null, 1);
             } else if (c == ')') {
-                next = new Token.PunctuationToken(")", reader.getLineNumber(), reader.getColumnNumber());
                 reader.advance();
-                break;
+                return setToken(CLOSE, null, 1);
             } else if (c == ';') {  // detect and skip comments
                 // skip to next line
-                do {
-                    c = reader.advance();
-                } while (c != -1 && c != '\n');
+                reader.skipLine();
             } else {
                 // otherwise read the characters of a symbol
                 // a symbol is terminated by EOF, whitespace, parenthesis, or semicolon
-                StringBuilder symbol = new StringBuilder();
-                int lineNumber = reader.getLineNumber();
-                int columnNumber = reader.getColumnNumber();
-                do {
-                    symbol.append((char) c);
-                    c = reader.advance();
-                // WARNING: the following line should be kept in sync with the if-else chain above
-                } while (c != -1 && !Character.isWhitespace(c) && c != '(' && c != ')' && c != ';');
-
-                next = new Token.SymbolToken(symbol.toString(), lineNumber, columnNumber);
-                break;
+                String s = reader.takeSymbol();
+                return setToken(SYMBOL, s, s.length());
             }
         }
-        // System.out.println("advanced to token " + next);
-        return next;
+    }
+
+    private int setToken(int kind, String symbol, int length) {
+        this.kind = kind;
+        this.symbol = symbol;
+        this.length = length;
+        return kind;
+    }
+
+    /**
+     * Returns a Token object for the current token, e.g., for an error message.
+     */
+    public Token currentToken() {
+        switch (kind) {
+            case OPEN:
+                return new Token.PunctuationToken("(", lineNumber, columnNumber);
+            case CLOSE:
+                return new Token.PunctuationToken(")", lineNumber, columnNumber);
+            case SYMBOL:
+                return new Token.SymbolToken(symbol, lineNumber, columnNumber);
+            case EOF:
+                return new Token.EOFToken(lineNumber, columnNumber);
+            default:
+                return null;
+        }
     }
 }
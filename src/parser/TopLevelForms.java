@@ -0,0 +1,94 @@
+package parser;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits program text into its top-level forms without parsing them, so that the forms can be
+ * parsed independently (e.g., in parallel; see trefoil2.ParallelParser).
+ *
+ * A top-level form is a parenthesized node, found by tracking the paren depth, or a symbol.
+ * Comments and whitespace between forms are skipped. A stray close paren becomes a form of its own,
+ * and an unclosed node runs to the end of the text, so parsing each form reports the same syntax
+ * errors, at the same positions, as parsing the whole text with PSTParser would.
+ */
+public class TopLevelForms {
+    /**
+     * The form text[start...end). lineNumber and columnNumber are the position just before it,
+     * as expected by PeekCharReader(char[], int, int, int, int).
+     */
+    @Data
+    public static class Form {
+        private final int start;
+        private final int end;
+        private final int lineNumber;
+        private final int columnNumber;
+    }
+
+    public static List<Form> split(char[] text) {
+        List<Form> forms = new ArrayList<>();
+        int lineNumber = 1;
+        int columnNumber = -1;
+        int i = 0;
+        while (i < text.length) {
+            char c = text[i];
+            if (Character.isWhitespace(c) || c == ';') {
+                // skip whitespace, or a comment up to (not including) the newline
+                do {
+                    columnNumber++;
+                    if (text[i] == '\n') {
+                        lineNumber++;
+                        columnNumber = -1;
+                    }
+                    i++;
+                } while (c == ';' && i < text.length && text[i] != '\n');
+                continue;
+            }
+
+            int start = i;
+            if (c == '(') {
+                int depth = 0;
+                boolean inComment = false;
+                for (; i < text.length; i++) {
+                    char d = text[i];
+                    if (inComment) {
+                        inComment = d != '\n';
+                    } else if (d == ';') {
+                        inComment = true;
+                    } else if (d == '(') {
+                        depth++;
+                    } else if (d == ')' && --depth == 0) {
+                        i++;
+                        break;
+                    }
+                }
+            } else if (c == ')') {
+                i++;
+            } else {
+                while (i < text.length && Tokenizer.isSymbolCharacter(text[i])) {
+                    i++;
+                }
+            }
+            forms.add(new Form(start, i, lineNumber, columnNumber));
+
+            for (int j = start; j < i; j++) {
+                columnNumber++;
+                if (text[j] == '\n') {
+                    lineNumber++;
+                    columnNumber = -1;
+                }
+            }
+        }
+        return forms;
+    }
+
+    /**
+     * Returns a parser for just the given form of text.
+     */
+    public static PSTParser parserFor(char[] text, Form form) {
+        return new PSTParser(new Tokenizer(
+                new PeekCharReader(text, form.getStart(), form.getEnd(), form.getLineNumber(), form.getColumnNumber())));
+    }
+}
@@ -0,0 +1,499 @@
+package trefoil2;
+
+import parser.SymbolTable;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary cache of the parsed bindings of a source file, so that running the same file
+ * again can skip tokenizing and parsing it.
+ *
+ * The cache for foo.trefoil is foo.trefoil.tfc, next to it. It is keyed by the SHA-256 of the source
+ * bytes: if the source has changed at all, the cache is ignored (and rewritten). The hash also covers
+ * whether the Optimizer is enabled, since that changes the parsed ASTs. The format is
+ *
+ *   magic "TFC1"
+ *   the 32-byte SHA-256 of the source and the optimizer setting
+ *   varint symbol count, then each symbol as a varint byte length and its UTF-8 bytes
+ *   varint binding count, then each binding as a tree of nodes
+ *
+ * where each node is a varint tag (see the constants below) followed by its fields: names as varint
+ * indices into the symbol table, integers as zigzag varints, and children as nodes. The lexical
+ * addresses computed by the Resolver are stored too, so loading is a single decoding pass.
+ *
+ * The cache file is read through a memory mapping. Anything wrong with it (truncated, corrupt, stale)
+ * just counts as a miss.
+ */
+public class AstCache {
+    private static final byte[] MAGIC = {'T', 'F', 'C', '1'};
+
+    // Node tags. Bindings and expressions share one tag space.
+    private static final int VARIABLE_BINDING = 0;
+    private static final int TOP_LEVEL_EXPRESSION = 1;
+    private static final int FUNCTION_BINDING = 2;
+    private static final int TEST_BINDING = 3;
+    private static final int INTEGER = 4;
+    private static final int BIG_INTEGER = 5;
+    private static final int TRUE = 6;
+    private static final int FALSE = 7;
+    private static final int NIL = 8;
+    private static final int VARIABLE = 9;
+    private static final int PLUS = 10;
+    private static final int MINUS = 11;
+    private static final int TIMES = 12;
+    private static final int EQUALS = 13;
+    private static final int IF = 14;
+    private static final int LET = 15;
+    private static final int LET_BINDING = 16;
+    private static final int IS_NIL = 17;
+    private static final int CONS = 18;
+    private static final int IS_CONS = 19;
+    private static final int CAR = 20;
+    private static final int CDR = 21;
+    private static final int CALL = 22;
+    private static final int MAX = 23;
+
+    public static Path cachePathFor(Path source) {
+        return source.resolveSibling(source.getFileName() + ".tfc");
+    }
+
+    public static byte[] hash(byte[] source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(source);
+            digest.update((byte) (Optimizer.isEnabled() ? 1 : 0));
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new Trefoil2.InternalInterpreterError(e);
+        }
+    }
+
+    /**
+     * Returns the cached bindings of the source file whose contents are sourceBytes, or null if there is
+     * no usable cache for exactly these contents.
+     */
+    public static List<Binding> load(Path source, byte[] sourceBytes) {
+        Path cache = cachePathFor(source);
+        if (!Files.isRegularFile(cache)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return decode(buffer, hash(sourceBytes));
+        } catch (IOException | RuntimeException e) {
+            // unreadable or corrupt, so parse as usual
+            return null;
+        }
+    }
+
+    /**
+     * Writes the cache for the source file whose contents are sourceBytes. Failing to write it is not an
+     * error; the next run just parses again.
+     */
+    public static void store(Path source, byte[] sourceBytes, List<Binding> bindings) {
+        Path cache = cachePathFor(source);
+        try {
+            // write a temporary file and move it into place, so that readers never see half a cache
+            Path temporary = cache.resolveSibling(cache.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+            try {
+                Files.write(temporary, encode(bindings, hash(sourceBytes)));
+                Files.move(temporary, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // e.g., a read-only directory
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Encoding
+    // ---------------------------------------------------------------------------------------------
+
+    public static byte[] encode(List<Binding> bindings, byte[] hash) {
+        Encoder body = new Encoder();
+        body.writeVarint(bindings.size());
+        for (Binding b : bindings) {
+            body.writeBinding(b);
+        }
+
+        Encoder header = new Encoder();
+        header.writeBytes(MAGIC, MAGIC.length);
+        header.writeBytes(hash, hash.length);
+        header.writeVarint(body.symbols.size());
+        for (String s : body.symbols) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            header.writeVarint(utf8.length);
+            header.writeBytes(utf8, utf8.length);
+        }
+        header.writeBytes(body.bytes, body.length);
+        return Arrays.copyOf(header.bytes, header.length);
+    }
+
+    private static class Encoder {
+        private byte[] bytes = new byte[1 << 12];
+        private int length = 0;
+        private final List<String> symbols = new ArrayList<>();
+        private final Map<String, Integer> symbolIndices = new HashMap<>();
+
+        private void writeByte(int b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[length++] = (byte) b;
+        }
+
+        private void writeBytes(byte[] b, int n) {
+            if (length + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + n));
+            }
+            System.arraycopy(b, 0, bytes, length, n);
+            length += n;
+        }
+
+        // unsigned LEB128
+        private void writeVarint(long x) {
+            while ((x & ~0x7FL) != 0) {
+                writeByte((int) ((x & 0x7F) | 0x80));
+                x >>>= 7;
+            }
+            writeByte((int) x);
+        }
+
+        // zigzag, so that small negative numbers are short too
+        private void writeSignedVarint(long x) {
+            writeVarint((x << 1) ^ (x >> 63));
+        }
+
+        private void writeSymbol(String s) {
+            Integer index = symbolIndices.get(s);
+            if (index == null) {
+                index = symbols.size();
+                symbols.add(s);
+                symbolIndices.put(s, index);
+            }
+            writeVarint(index);
+        }
+
+        private void writeBinding(Binding b) {
+            if (b instanceof Binding.VariableBinding) {
+                Binding.VariableBinding vb = (Binding.VariableBinding) b;
+                writeVarint(VARIABLE_BINDING);
+                writeSymbol(vb.getVarname());
+                writeExpression(vb.getVardef());
+            } else if (b instanceof Binding.TopLevelExpression) {
+                writeVarint(TOP_LEVEL_EXPRESSION);
+                writeExpression(((Binding.TopLevelExpression) b).getExpression());
+            } else if (b instanceof Binding.FunctionBinding) {
+                Binding.FunctionBinding fb = (Binding.FunctionBinding) b;
+                writeVarint(FUNCTION_BINDING);
+                writeSymbol(fb.getFunname());
+                writeVarint(fb.getArgnames().size());
+                for (String argname : fb.getArgnames()) {
+                    writeSymbol(argname);
+                }
+                writeExpression(fb.getBody());
+            } else if (b instanceof Binding.TestBinding) {
+                writeVarint(TEST_BINDING);
+                writeExpression(((Binding.TestBinding) b).getExpression());
+            } else {
+                throw new Trefoil2.InternalInterpreterError("\"impossible\" binding AST node " + b.getClass());
+            }
+        }
+
+        private void writeExpression(Expression e) {
+            if (e instanceof Expression.IntegerLiteral) {
+                writeVarint(INTEGER);
+                writeSignedVarint(((Expression.IntegerLiteral) e).getData());
+            } else if (e instanceof Expression.BigIntegerLiteral) {
+                byte[] magnitude = ((Expression.BigIntegerLiteral) e).getData().toByteArray();
+                writeVarint(BIG_INTEGER);
+                writeVarint(magnitude.length);
+                writeBytes(magnitude, magnitude.length);
+            } else if (e instanceof Expression.BooleanLiteral) {
+                writeVarint(((Expression.BooleanLiteral) e).isData() ? TRUE : FALSE);
+            } else if (e instanceof Expression.Nil) {
+                writeVarint(NIL);
+            } else if (e instanceof Expression.VariableReference) {
+                Expression.VariableReference var = (Expression.VariableReference) e;
+                writeVarint(VARIABLE);
+                writeSymbol(var.getVarname());
+                writeVarint(var.getDepth() + 1);
+                writeVarint(var.getSlot() + 1);
+            } else if (e instanceof Expression.Plus) {
+                writeVarint(PLUS);
+                writeExpression(((Expression.Plus) e).getLeft());
+                writeExpression(((Expression.Plus) e).getRight());
+            } else if (e instanceof Expression.Minus) {
+                writeVarint(MINUS);
+                writeExpression(((Expression.Minus) e).getLeft());
+                writeExpression(((Expression.Minus) e).getRight());
+            } else if (e instanceof Expression.Times) {
+                writeVarint(TIMES);
+                writeExpression(((Expression.Times) e).getLeft());
+                writeExpression(((Expression.Times) e).getRight());
+            } else if (e instanceof Expression.Equals) {
+                writeVarint(EQUALS);
+                writeExpression(((Expression.Equals) e).getLeft());
+                writeExpression(((Expression.Equals) e).getRight());
+            } else if (e instanceof Expression.ifStatement) {
+                Expression.ifStatement p = (Expression.ifStatement) e;
+                writeVarint(IF);
+                writeExpression(p.getCondition());
+                writeExpression(p.getTrueStatement());
+                writeExpression(p.getFalseStatement());
+            } else if (e instanceof Expression.let) {
+                writeVarint(LET);
+                writeExpression(((Expression.let) e).getTemporalEnvironment());
+                writeExpression(((Expression.let) e).getExpression());
+            } else if (e instanceof Expression.letChildren1) {
+                writeVarint(LET_BINDING);
+                writeSymbol(((Expression.letChildren1) e).getLocalVariable());
+                writeExpression(((Expression.letChildren1) e).getExpression());
+            } else if (e instanceof Expression.Isnil) {
+                writeVarint(IS_NIL);
+                writeExpression(((Expression.Isnil) e).getExpression());
+            } else if (e instanceof Expression.Cons) {
+                writeVarint(CONS);
+                writeExpression(((Expression.Cons) e).getExpression1());
+                writeExpression(((Expression.Cons) e).getExpression2());
+            } else if (e instanceof Expression.IsCons) {
+                writeVarint(IS_CONS);
+                writeExpression(((Expression.IsCons) e).getExpression());
+            } else if (e instanceof Expression.car) {
+                writeVarint(CAR);
+                writeExpression(((Expression.car) e).getExpression());
+            } else if (e instanceof Expression.cdr) {
+                writeVarint(CDR);
+                writeExpression(((Expression.cdr) e).getExpression());
+            } else if (e instanceof Expression.FunctionReference) {
+                Expression.FunctionReference func = (Expression.FunctionReference) e;
+                writeVarint(CALL);
+                writeSymbol(func.getFunname());
+                writeVarint(func.getDepth() + 1);
+                writeVarint(func.getSlot() + 1);
+                writeExpressions(func.getArgs());
+            } else if (e instanceof Expression.Findmax) {
+                writeVarint(MAX);
+                writeExpressions(((Expression.Findmax) e).getArgs());
+            } else {
+                throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
+            }
+        }
+
+        private void writeExpressions(List<Expression> es) {
+            writeVarint(es.size());
+            for (Expression e : es) {
+                writeExpression(e);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+    // Decoding
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Decodes bindings encoded by encode(). Returns null if they were encoded for a source with a
+     * different hash. Throws a RuntimeException if buffer is corrupt.
+     */
+    public static List<Binding> decode(ByteBuffer buffer, byte[] expectedHash) {
+        Decoder in = new Decoder(buffer);
+        for (byte b : MAGIC) {
+            if (buffer.get() != b) {
+                return null;
+            }
+        }
+        byte[] hash = new byte[expectedHash.length];
+        buffer.get(hash);
+        if (!Arrays.equals(hash, expectedHash)) {
+            return null;
+        }
+        String[] symbols = new String[in.readLength()];
+        for (int i = 0; i < symbols.length; i++) {
+            byte[] utf8 = new byte[in.readLength()];
+            buffer.get(utf8);
+            symbols[i] = SymbolTable.intern(new String(utf8, StandardCharsets.UTF_8));
+        }
+        in.symbols = symbols;
+
+        int n = in.readLength();
+        List<Binding> bindings = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            bindings.add(in.readBinding());
+        }
+        if (buffer.hasRemaining()) {
+            throw new IllegalStateException("trailing bytes in AST cache");
+        }
+        return bindings;
+    }
+
+    private static class Decoder {
+        private final ByteBuffer buffer;
+        private String[] symbols;
+
+        private Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private long readVarint() {
+            long x = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer.get();
+                x |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return x;
+                }
+            }
+            throw new IllegalStateException("malformed varint in AST cache");
+        }
+
+        private long readSignedVarint() {
+            long x = readVarint();
+            return (x >>> 1) ^ -(x & 1);
+        }
+
+        // A count or size, which must fit in what is left of the buffer.
+        private int readLength() {
+            long n = readVarint();
+            if (n < 0 || n > buffer.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            return (int) n;
+        }
+
+        private String readSymbol() {
+            return symbols[(int) readVarint()];
+        }
+
+        private int readAddress() {
+            return (int) readVarint() - 1;
+        }
+
+        private Binding readBinding() {
+            int tag = (int) readVarint();
+            switch (tag) {
+                case VARIABLE_BINDING: {
+                    String varname = readSymbol();
+                    return new Binding.VariableBinding(varname, readExpression());
+                }
+                case TOP_LEVEL_EXPRESSION:
+                    return new Binding.TopLevelExpression(readExpression());
+                case FUNCTION_BINDING: {
+                    String funname = readSymbol();
+                    int n = readLength();
+                    List<String> argnames = new ArrayList<>(n);
+                    for (int i = 0; i < n; i++) {
+                        argnames.add(readSymbol());
+                    }
+                    return new Binding.FunctionBinding(funname, argnames, readExpression());
+                }
+                case TEST_BINDING:
+                    return new Binding.TestBinding(readExpression());
+                default:
+                    throw new IllegalStateException("bad binding tag " + tag + " in AST cache");
+            }
+        }
+
+        private Expression readExpression() {
+            int tag = (int) readVarint();
+            switch (tag) {
+                case INTEGER:
+                    return Expression.ofInt(readSignedVarint());
+                case BIG_INTEGER: {
+                    byte[] magnitude = new byte[readLength()];
+                    buffer.get(magnitude);
+                    return Expression.ofBigInteger(new BigInteger(magnitude));
+                }
+                case TRUE:
+                    return Expression.ofBoolean(true);
+                case FALSE:
+                    return Expression.ofBoolean(false);
+                case NIL:
+                    return Expression.nil();
+                case VARIABLE: {
+                    String varname = readSymbol();
+                    int depth = readAddress();
+                    return new Expression.VariableReference(varname, depth, readAddress());
+                }
+                case PLUS: {
+                    Expression left = readExpression();
+                    return new Expression.Plus(left, readExpression());
+                }
+                case MINUS: {
+                    Expression left = readExpression();
+                    return new Expression.Minus(left, readExpression());
+                }
+                case TIMES: {
+                    Expression left = readExpression();
+                    return new Expression.Times(left, readExpression());
+                }
+                case EQUALS: {
+                    Expression left = readExpression();
+                    return new Expression.Equals(left, readExpression());
+                }
+                case IF: {
+                    Expression condition = readExpression();
+                    Expression trueStatement = readExpression();
+                    return new Expression.ifStatement(condition, trueStatement, readExpression());
+                }
+                case LET: {
+                    Expression temporalEnvironment = readExpression();
+                    return new Expression.let(temporalEnvironment, readExpression());
+                }
+                case LET_BINDING: {
+                    String localVariable = readSymbol();
+                    return new Expression.letChildren1(localVariable, readExpression());
+                }
+                case IS_NIL:
+                    return new Expression.Isnil(readExpression());
+                case CONS: {
+                    Expression e1 = readExpression();
+                    return new Expression.Cons(e1, readExpression());
+                }
+                case IS_CONS:
+                    return new Expression.IsCons(readExpression());
+                case CAR:
+                    return new Expression.car(readExpression());
+                case CDR:
+                    return new Expression.cdr(readExpression());
+                case CALL: {
+                    String funname = readSymbol();
+                    int depth = readAddress();
+                    int slot = readAddress();
+                    return new Expression.FunctionReference(funname, readExpressions(), depth, slot);
+                }
+                case MAX:
+                    return new Expression.Findmax(readExpressions());
+                default:
+                    throw new IllegalStateException("bad expression tag " + tag + " in AST cache");
+            }
+        }
+
+        private List<Expression> readExpressions() {
+            int n = readLength();
+            List<Expression> es = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                es.add(readExpression());
+            }
+            return es;
+        }
+    }
+}
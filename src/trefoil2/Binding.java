@@ -54,7 +54,7 @@ public abstract class Binding {
         // The pst is either a symbol or a node.
         // The only way a symbol can be a binding is as a top-level expression.
         if (pst instanceof ParenthesizedSymbolTree.Symbol) {
-            return new TopLevelExpression(Expression.parsePST(pst));
+            return new TopLevelExpression(parseExpression(pst, null));
         }
         // Now we know the PST is a Node.
         ParenthesizedSymbolTree.Node n = (ParenthesizedSymbolTree.Node) pst;
@@ -70,7 +70,7 @@ public abstract class Binding {
             }
             if (children.get(1) instanceof ParenthesizedSymbolTree.Symbol) {
                 ParenthesizedSymbolTree.Symbol varsym = (ParenthesizedSymbolTree.Symbol) children.get(1);
-                return new VariableBinding(varsym.getSymbol(), Expression.parsePST(children.get(2)));
+                return new VariableBinding(varsym.getSymbol(), parseExpression(children.get(2), null));
             } else {
                 ParenthesizedSymbolTree.Node node = (ParenthesizedSymbolTree.Node) children.get(1);
                 List<ParenthesizedSymbolTree> funAndArgs = node.getChildren();
@@ -79,11 +79,12 @@ public abstract class Binding {
                     throw new Trefoil2.TrefoilError.AbstractSyntaxError("Malformed top-level function binding");
                 }
 
+                List<String> argnames = funAndArgs.subList(1, funAndArgs.size()).stream()
+                        .map(x -> ((ParenthesizedSymbolTree.Symbol) x).getSymbol())
+                        .collect(Collectors.toList());
                 return new FunctionBinding(((ParenthesizedSymbolTree.Symbol) funAndArgs.get(0)).getSymbol(),
-                        funAndArgs.subList(1, funAndArgs.size()).stream()
-                                .map(x -> ((ParenthesizedSymbolTree.Symbol) x).getSymbol())
-                                .collect(Collectors.toList()),
-                        Expression.parsePST(children.get(2)));
+                        argnames,
+                        parseExpression(children.get(2), argnames));
             }
         }
         else if (head.equals("test")) {
@@ -93,13 +94,23 @@ public abstract class Binding {
             if (children.size() - 1 != 1) {
                 throw new Trefoil2.TrefoilError.AbstractSyntaxError("Top-level test expects one arguments.");
             }
-            return new TestBinding(Expression.parsePST(children.get(1)));
+            return new TestBinding(parseExpression(children.get(1), null));
         } else {
             // If the head is not recognized, the whole PST represents a top-level expression.
-            return new TopLevelExpression(Expression.parsePST(pst));
+            return new TopLevelExpression(parseExpression(pst, null));
         }
     }
 
+    // Converts the PST of an expression in a binding to an AST, optimizes it if the Optimizer is enabled,
+    // and resolves its local variables. params are the parameters of the enclosing function, or null.
+    private static Expression parseExpression(ParenthesizedSymbolTree pst, List<String> params) {
+        Expression e = Expression.parsePST(pst);
+        if (Optimizer.isEnabled()) {
+            e = Optimizer.optimize(e);
+        }
+        return params == null ? Resolver.resolve(e) : Resolver.resolve(e, params);
+    }
+
     // Convenience factory method for unit testsing.
     public static Binding parseString(String s) {
         return parsePST(ParenthesizedSymbolTree.parseString(s));
@@ -0,0 +1,310 @@
+package trefoil2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles an expression AST into bytecode for BytecodeVM, used by Interpreter.Engine.BYTECODE.
+ *
+ * The bytecode of an expression is a flat int[] of opcodes and their operands, plus a constant pool
+ * for everything that is not an int (values, names, call sites). Operands are the values of
+ * subexpressions, passed on an operand stack, so for example (+ x 1) compiles to
+ *
+ *   LOCAL 0       push local 0
+ *   INT 1         push the integer 1
+ *   PLUS          pop two values and push their sum
+ *
+ * Locals are numbered, rather than kept in DynamicEnvironment frames: a function's parameters are
+ * locals 0 to n - 1, and each let stores its variable in the next local after the ones in scope.
+ * A let's local is free again once its body is compiled, so the locals of sibling lets share it.
+ * The VM keeps the locals on its operand stack, below the operands (see BytecodeVM).
+ *
+ * Expressions are compiled knowing whether they are in tail position. A call in tail position
+ * compiles to TAIL_CALL, which reuses the current VM frame, so tail calls run in constant space.
+ *
+ * Like ClosureCompiler, the compiler expects ASTs that have been through Resolver, and compiling
+ * never fails: errors are reported when the bytecode runs, exactly when the tree walker would.
+ */
+public class BytecodeCompiler {
+    // Opcodes. The comment after each says what its operands are and what it does to the operand stack.
+    static final int CONST = 0;          // k: push constants[k]
+    static final int INT = 1;            // n: push the integer n
+    static final int LOCAL = 2;          // k: push local k
+    static final int GLOBAL = 3;         // k: push the global variable named constants[k]
+    static final int PLUS = 4;           // pop v2, v1; push v1 + v2
+    static final int MINUS = 5;          // pop v2, v1; push v1 - v2
+    static final int TIMES = 6;          // pop v2, v1; push v1 * v2
+    static final int EQUALS = 7;         // pop v2, v1; push v1 = v2
+    static final int JUMP_IF_FALSE = 8;  // target: pop v; if v is false, continue at target
+    static final int JUMP = 9;           // target: continue at target
+    static final int LET = 10;           // k: pop v; store v in local k
+    static final int IS_NIL = 11;        // pop v; push whether v is nil
+    static final int CONS = 12;          // pop v2, v1; push (cons v1 v2)
+    static final int IS_CONS = 13;       // pop v; push whether v is a cons
+    static final int CAR = 14;           // pop v; push (car v)
+    static final int CDR = 15;           // pop v; push (cdr v)
+    static final int CHECK_MAX = 16;     // check that the value on top is a valid max argument
+    static final int MAX = 17;           // pop v2, v1; check v2 is a valid max argument; push the larger
+    static final int FUNCTION = 18;      // k: look up and push the function called by the call site constants[k]
+    static final int CALL = 19;          // n: pop n arguments and the function below them; push the result of the call
+    static final int TAIL_CALL = 20;     // n: like CALL, but the result is the result of the current function
+    static final int RETURN = 21;        // pop v; v is the result of the current function
+    static final int ERROR = 22;         // k: throw an AbstractSyntaxError with message constants[k]
+    static final int JUMP_IF_NOT_EQUAL = 23;  // target: pop v2, v1; unless v1 = v2, continue at target
+    // The same with an integer constant n as v2, saving an INT for the common (- n 1) and (= n 0).
+    static final int PLUS_INT = 24;      // n: pop v1; push v1 + n
+    static final int MINUS_INT = 25;     // n: pop v1; push v1 - n
+    static final int JUMP_IF_NOT_INT = 26;  // n target: pop v1; unless v1 = n, continue at target
+
+    private static final String[] NAMES = {
+            "CONST", "INT", "LOCAL", "GLOBAL", "PLUS", "MINUS", "TIMES", "EQUALS", "JUMP_IF_FALSE", "JUMP",
+            "LET", "IS_NIL", "CONS", "IS_CONS", "CAR", "CDR", "CHECK_MAX", "MAX", "FUNCTION",
+            "CALL", "TAIL_CALL", "RETURN", "ERROR", "JUMP_IF_NOT_EQUAL", "PLUS_INT", "MINUS_INT", "JUMP_IF_NOT_INT"
+    };
+    private static final int[] OPERANDS = {1, 1, 1, 1, 0, 0, 0, 0, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 0, 1, 1, 1, 1, 2};
+
+    /**
+     * The compiled bytecode of one expression (a top-level expression or a function body).
+     */
+    public static final class Code {
+        final int[] code;
+        final Object[] constants;
+        final Object[] caches;  // per-constant inline caches, used by BytecodeVM for GLOBAL and FUNCTION
+        final int maxLocals;  // the number of locals, including the parameters
+        final int maxStack;  // the most operand stack slots this code uses at once
+
+        private Code(int[] code, Object[] constants, int maxLocals, int maxStack) {
+            this.code = code;
+            this.constants = constants;
+            this.caches = new Object[constants.length];
+            this.maxLocals = maxLocals;
+            this.maxStack = maxStack;
+        }
+
+        /**
+         * Returns the disassembled bytecode, one instruction per line.
+         */
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (int pc = 0; pc < code.length; pc += 1 + OPERANDS[code[pc]]) {
+                sb.append(pc).append(": ").append(NAMES[code[pc]]);
+                for (int i = 1; i <= OPERANDS[code[pc]]; i++) {
+                    sb.append(' ').append(code[pc + i]);
+                }
+                int op = code[pc];
+                if (op == CONST || op == GLOBAL || op == FUNCTION || op == ERROR) {
+                    sb.append("  ; ").append(constants[code[pc + 1]]);
+                }
+                sb.append('\n');
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Compiles e into code that runs e and returns its value.
+     */
+    public static Code compile(Expression e) {
+        return compile(e, 0);
+    }
+
+    // Compiles the body of a function with params parameters (0 for a top-level expression).
+    private static Code compile(Expression e, int params) {
+        BytecodeCompiler compiler = new BytecodeCompiler(params);
+        compiler.compile(e, true);
+        compiler.emit(RETURN, -1);
+        return new Code(Arrays.copyOf(compiler.code, compiler.length), compiler.constants.toArray(),
+                compiler.maxLocals, compiler.maxDepth);
+    }
+
+    // Returns the bytecode of the body of the function in entry, compiling it on first use.
+    static Code bodyOf(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry) {
+        Code body = entry.getBytecode();
+        if (body == null) {
+            Binding.FunctionBinding binding = entry.getFunctionBinding();
+            body = compile(binding.getBody(), binding.getArgnames().size());
+            entry.setBytecode(body);
+        }
+        return body;
+    }
+
+    private int[] code = new int[32];
+    private int length = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private int depth = 0;  // operand stack depth at the current point of the code
+    private int maxDepth = 0;
+
+    // The first local of each frame the Resolver counts, innermost last: the parameters, then one per let.
+    private int[] scopes = new int[8];
+    private int scopeCount = 0;
+    private int locals;  // the number of locals in scope at the current point of the code
+    private int maxLocals;
+
+    private BytecodeCompiler(int params) {
+        if (params > 0) {
+            scopes[scopeCount++] = 0;
+        }
+        locals = params;
+        maxLocals = params;
+    }
+
+    // Emits an instruction that changes the operand stack depth by effect.
+    private void emit(int op, int effect, int... operands) {
+        if (length + 1 + operands.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length + 1 + operands.length));
+        }
+        code[length++] = op;
+        for (int operand : operands) {
+            code[length++] = operand;
+        }
+        depth += effect;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private int constant(Object value) {
+        constants.add(value);
+        return constants.size() - 1;
+    }
+
+    // Compiles e, which leaves its value on the operand stack (or, for a call in tail position, returns it).
+    private void compile(Expression e, boolean tail) {
+        if (e instanceof Expression.IntegerLiteral
+                || e instanceof Expression.BigIntegerLiteral
+                || e instanceof Expression.BooleanLiteral
+                || e instanceof Expression.Nil) {
+            if (isInt(e)) {
+                emit(INT, 1, (int) ((Expression.IntegerLiteral) e).getData());
+            } else {
+                emit(CONST, 1, constant(e));
+            }
+        } else if (e instanceof Expression.VariableReference) {
+            Expression.VariableReference var = (Expression.VariableReference) e;
+            if (var.getDepth() >= 0) {
+                emit(LOCAL, 1, scopes[scopeCount - 1 - var.getDepth()] + var.getSlot());
+            } else {
+                emit(GLOBAL, 1, constant(var.getVarname()));
+            }
+        } else if (e instanceof Expression.Plus) {
+            compileBinary(((Expression.Plus) e).getLeft(), ((Expression.Plus) e).getRight(), PLUS, PLUS_INT);
+        } else if (e instanceof Expression.Minus) {
+            compileBinary(((Expression.Minus) e).getLeft(), ((Expression.Minus) e).getRight(), MINUS, MINUS_INT);
+        } else if (e instanceof Expression.Times) {
+            compileBinary(((Expression.Times) e).getLeft(), ((Expression.Times) e).getRight(), TIMES);
+        } else if (e instanceof Expression.Equals) {
+            compileBinary(((Expression.Equals) e).getLeft(), ((Expression.Equals) e).getRight(), EQUALS);
+        } else if (e instanceof Expression.ifStatement) {
+            Expression.ifStatement p = (Expression.ifStatement) e;
+            if (p.getCondition() instanceof Expression.Equals) {
+                // compare and branch in one instruction, without making a BooleanLiteral
+                Expression.Equals condition = (Expression.Equals) p.getCondition();
+                compile(condition.getLeft(), false);
+                if (isInt(condition.getRight())) {
+                    emit(JUMP_IF_NOT_INT, -1, (int) ((Expression.IntegerLiteral) condition.getRight()).getData(), 0);
+                } else {
+                    compile(condition.getRight(), false);
+                    emit(JUMP_IF_NOT_EQUAL, -2, 0);
+                }
+            } else {
+                compile(p.getCondition(), false);
+                emit(JUMP_IF_FALSE, -1, 0);
+            }
+            int jumpToElse = length - 1;
+            compile(p.getTrueStatement(), tail);
+            if (tail) {
+                // return right away rather than jumping to the RETURN after the if
+                emit(RETURN, -1);
+                code[jumpToElse] = length;
+                compile(p.getFalseStatement(), true);
+                return;
+            }
+            emit(JUMP, -1, 0);  // the false branch pushes its own value
+            int jumpToEnd = length - 1;
+            code[jumpToElse] = length;
+            compile(p.getFalseStatement(), false);
+            code[jumpToEnd] = length;
+        } else if (e instanceof Expression.let) {
+            Expression.let p = (Expression.let) e;
+            if (!(p.getTemporalEnvironment() instanceof Expression.letChildren1)) {
+                emit(ERROR, 1, constant("first argument of let expression is not a definition"));
+                return;
+            }
+            Expression.letChildren1 f = (Expression.letChildren1) p.getTemporalEnvironment();
+            compile(f.getExpression(), false);
+            int local = locals++;
+            maxLocals = Math.max(maxLocals, locals);
+            emit(LET, -1, local);
+            if (scopeCount == scopes.length) {
+                scopes = Arrays.copyOf(scopes, scopeCount * 2);
+            }
+            scopes[scopeCount++] = local;
+            compile(p.getExpression(), tail);
+            scopeCount--;
+            locals--;
+        } else if (e instanceof Expression.Isnil) {
+            compile(((Expression.Isnil) e).getExpression(), false);
+            emit(IS_NIL, 0);
+        } else if (e instanceof Expression.Cons) {
+            compileBinary(((Expression.Cons) e).getExpression1(), ((Expression.Cons) e).getExpression2(), CONS);
+        } else if (e instanceof Expression.IsCons) {
+            compile(((Expression.IsCons) e).getExpression(), false);
+            emit(IS_CONS, 0);
+        } else if (e instanceof Expression.car) {
+            compile(((Expression.car) e).getExpression(), false);
+            emit(CAR, 0);
+        } else if (e instanceof Expression.cdr) {
+            compile(((Expression.cdr) e).getExpression(), false);
+            emit(CDR, 0);
+        } else if (e instanceof Expression.FunctionReference) {
+            Expression.FunctionReference func = (Expression.FunctionReference) e;
+            // look up the function (and check its arity) before evaluating the arguments, as the tree walker does
+            emit(FUNCTION, 1, constant(func));
+            for (Expression arg : func.getArgs()) {
+                compile(arg, false);
+            }
+            int n = func.getArgs().size();
+            if (tail) {
+                emit(TAIL_CALL, -(n + 1), n);
+                depth++;  // as far as the code after it is concerned, which only a branch can reach
+            } else {
+                emit(CALL, -n, n);
+            }
+        } else if (e instanceof Expression.Findmax) {
+            List<Expression> args = ((Expression.Findmax) e).getArgs();
+            compile(args.get(0), false);
+            emit(CHECK_MAX, 0);
+            for (int i = 1; i < args.size(); i++) {
+                compile(args.get(i), false);
+                emit(MAX, -1);
+            }
+        } else {
+            throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
+        }
+    }
+
+    private void compileBinary(Expression left, Expression right, int op) {
+        compile(left, false);
+        compile(right, false);
+        emit(op, -1);
+    }
+
+    // Compiles with intOp when right is an integer constant that fits an operand.
+    private void compileBinary(Expression left, Expression right, int op, int intOp) {
+        if (!isInt(right)) {
+            compileBinary(left, right, op);
+            return;
+        }
+        compile(left, false);
+        emit(intOp, 0, (int) ((Expression.IntegerLiteral) right).getData());
+    }
+
+    // Whether e is an integer literal that fits in an int operand.
+    private static boolean isInt(Expression e) {
+        if (!(e instanceof Expression.IntegerLiteral)) {
+            return false;
+        }
+        long n = ((Expression.IntegerLiteral) e).getData();
+        return n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE;
+    }
+}
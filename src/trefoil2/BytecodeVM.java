@@ -0,0 +1,366 @@
+package trefoil2;
+
+import java.util.Arrays;
+
+import static trefoil2.BytecodeCompiler.*;
+
+/**
+ * Runs bytecode compiled by BytecodeCompiler, used by Interpreter.Engine.BYTECODE.
+ *
+ * The VM is a single dispatch loop over the int[] code, with the operand stack in an array. Calls
+ * do not recurse in Java: the caller's code, pc, and environment are saved in arrays of VM frames,
+ * so deep non-tail recursion is limited by the heap (and the same budget as StackMachine) rather than
+ * by the Java stack. A TAIL_CALL replaces the current VM frame instead of saving it.
+ *
+ * A function's locals live on the operand stack too, starting at stackBase: a CALL moves the
+ * arguments down over the function below them, where they become the callee's parameters, and the
+ * callee's operands start after its last local. So neither calls nor lets allocate anything. The
+ * DynamicEnvironment of a VM frame is the function's defining environment, which is only used to
+ * look up globals and functions.
+ *
+ * Integers are unboxed: a slot holding an integer holds UNBOXED in stack, and the integer itself in the
+ * parallel array nums. Arithmetic and comparisons on two such slots work on longs; anything else
+ * (BigIntegers, overflow, and errors) goes through the Interpreter's primitives on boxed values.
+ */
+public class BytecodeVM {
+    /**
+     * Evaluates e in the given environment. Returns the resulting value.
+     */
+    public static Expression evaluate(Expression e, Interpreter.DynamicEnvironment environment) {
+        return new BytecodeVM(StackMachine.getMaxDepth()).run(BytecodeCompiler.compile(e), environment);
+    }
+
+    // What a GLOBAL or FUNCTION instruction found in a particular top-level map.
+    private static final class Cached {
+        private final PersistentMap<Interpreter.DynamicEnvironment.Entry> map;
+        private final Object found;
+
+        Cached(PersistentMap<Interpreter.DynamicEnvironment.Entry> map, Object found) {
+            this.map = map;
+            this.found = found;
+        }
+    }
+
+    // Marks a stack slot whose value is the integer in nums.
+    private static final Object UNBOXED = new Object();
+
+    private final int limit;
+
+    private Object[] stack = new Object[64];
+    private long[] nums = new long[64];
+
+    // The saved VM frames of the callers, as parallel arrays. Entry i is live iff i < fp.
+    private Code[] frameCodes;
+    private int[] framePcs;
+    private Interpreter.DynamicEnvironment[] frameEnvs;
+    private int[] frameStackBases;
+
+    private BytecodeVM(int limit) {
+        this.limit = limit;
+        int capacity = Math.min(16, limit);
+        frameCodes = new Code[capacity];
+        framePcs = new int[capacity];
+        frameEnvs = new Interpreter.DynamicEnvironment[capacity];
+        frameStackBases = new int[capacity];
+    }
+
+    private Expression run(Code current, Interpreter.DynamicEnvironment env) {
+        int[] code = current.code;
+        Object[] constants = current.constants;
+        int pc = 0;
+        int fp = 0;  // frame pointer
+        int stackBase = 0;  // where the current function's locals start
+        int sp = current.maxLocals;  // operand stack pointer
+        ensureStack(sp + current.maxStack);
+
+        Object[] stack = this.stack;
+        long[] nums = this.nums;
+        while (true) {
+            switch (code[pc++]) {
+                case CONST:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case INT:
+                    stack[sp] = UNBOXED;
+                    nums[sp++] = code[pc++];
+                    break;
+                case LOCAL: {
+                    int local = stackBase + code[pc++];
+                    stack[sp] = stack[local];
+                    nums[sp++] = nums[local];
+                    break;
+                }
+                case GLOBAL:
+                    push(sp++, global(current, code[pc++], env));
+                    break;
+                case PLUS:
+                    sp--;
+                    if (stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        try {
+                            nums[sp - 1] = Math.addExact(nums[sp - 1], nums[sp]);
+                            break;
+                        } catch (ArithmeticException overflow) {
+                            // Interpreter.plus promotes to BigInteger
+                        }
+                    }
+                    stack[sp - 1] = Interpreter.plus(value(sp - 1), value(sp));
+                    break;
+                case MINUS:
+                    sp--;
+                    if (stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        try {
+                            nums[sp - 1] = Math.subtractExact(nums[sp - 1], nums[sp]);
+                            break;
+                        } catch (ArithmeticException overflow) {
+                            // Interpreter.minus promotes to BigInteger
+                        }
+                    }
+                    stack[sp - 1] = Interpreter.minus(value(sp - 1), value(sp));
+                    break;
+                case TIMES:
+                    sp--;
+                    if (stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        try {
+                            nums[sp - 1] = Math.multiplyExact(nums[sp - 1], nums[sp]);
+                            break;
+                        } catch (ArithmeticException overflow) {
+                            // Interpreter.times promotes to BigInteger
+                        }
+                    }
+                    stack[sp - 1] = Interpreter.times(value(sp - 1), value(sp));
+                    break;
+                case PLUS_INT: {
+                    int n = code[pc++];
+                    if (stack[sp - 1] == UNBOXED) {
+                        try {
+                            nums[sp - 1] = Math.addExact(nums[sp - 1], n);
+                            break;
+                        } catch (ArithmeticException overflow) {
+                            // Interpreter.plus promotes to BigInteger
+                        }
+                    }
+                    stack[sp - 1] = Interpreter.plus(value(sp - 1), Expression.ofInt(n));
+                    break;
+                }
+                case MINUS_INT: {
+                    int n = code[pc++];
+                    if (stack[sp - 1] == UNBOXED) {
+                        try {
+                            nums[sp - 1] = Math.subtractExact(nums[sp - 1], n);
+                            break;
+                        } catch (ArithmeticException overflow) {
+                            // Interpreter.minus promotes to BigInteger
+                        }
+                    }
+                    stack[sp - 1] = Interpreter.minus(value(sp - 1), Expression.ofInt(n));
+                    break;
+                }
+                case EQUALS:
+                    sp--;
+                    if (stack[sp - 1] == UNBOXED && stack[sp] == UNBOXED) {
+                        stack[sp - 1] = Expression.ofBoolean(nums[sp - 1] == nums[sp]);
+                    } else {
+                        stack[sp - 1] = Interpreter.equals(value(sp - 1), value(sp));
+                    }
+                    break;
+                case JUMP_IF_FALSE: {
+                    Object v = stack[--sp];
+                    if (v != UNBOXED && Interpreter.isFalse((Expression) v)) {
+                        pc = code[pc];
+                    } else {
+                        pc++;
+                    }
+                    break;
+                }
+                case JUMP_IF_NOT_EQUAL: {
+                    sp -= 2;
+                    if (stack[sp] == UNBOXED && stack[sp + 1] == UNBOXED
+                            ? nums[sp] != nums[sp + 1]
+                            : Interpreter.isFalse(Interpreter.equals(value(sp), value(sp + 1)))) {
+                        pc = code[pc];
+                    } else {
+                        pc++;
+                    }
+                    break;
+                }
+                case JUMP_IF_NOT_INT: {
+                    sp--;
+                    if (stack[sp] == UNBOXED ? nums[sp] != code[pc]
+                            : Interpreter.isFalse(Interpreter.equals(value(sp), Expression.ofInt(code[pc])))) {
+                        pc = code[pc + 1];
+                    } else {
+                        pc += 2;
+                    }
+                    break;
+                }
+                case JUMP:
+                    pc = code[pc];
+                    break;
+                case LET: {
+                    int local = stackBase + code[pc++];
+                    sp--;
+                    stack[local] = stack[sp];
+                    nums[local] = nums[sp];
+                    break;
+                }
+                case IS_NIL:
+                    stack[sp - 1] = Interpreter.isNil(value(sp - 1));
+                    break;
+                case CONS:
+                    sp--;
+                    stack[sp - 1] = new Expression.Cons(value(sp - 1), value(sp));
+                    break;
+                case IS_CONS:
+                    stack[sp - 1] = Interpreter.isCons(value(sp - 1));
+                    break;
+                case CAR:
+                    push(sp - 1, Interpreter.car(value(sp - 1)));
+                    break;
+                case CDR:
+                    stack[sp - 1] = Interpreter.cdr(value(sp - 1));
+                    break;
+                case CHECK_MAX:
+                    Interpreter.maxArgument(value(sp - 1));
+                    break;
+                case MAX: {
+                    Expression v2 = Interpreter.maxArgument(value(--sp));
+                    stack[sp - 1] = Interpreter.max(value(sp - 1), v2);
+                    break;
+                }
+                case FUNCTION:
+                    stack[sp++] = function(current, code[pc++], env);
+                    break;
+                case CALL:
+                case TAIL_CALL: {
+                    boolean tail = code[pc - 1] == TAIL_CALL;
+                    int n = code[pc++];
+                    int base = sp - n - 1;
+                    Interpreter.DynamicEnvironment.Entry.FunctionEntry entry =
+                            (Interpreter.DynamicEnvironment.Entry.FunctionEntry) stack[base];
+
+                    if (tail) {
+                        // reuse the current frame: its locals are dead once the arguments are evaluated
+                        for (int i = 0; i < n; i++) {
+                            stack[stackBase + i] = stack[base + 1 + i];
+                            nums[stackBase + i] = nums[base + 1 + i];
+                        }
+                    } else {
+                        if (fp == frameCodes.length) {
+                            growFrames(fp);
+                        }
+                        frameCodes[fp] = current;
+                        framePcs[fp] = pc;
+                        frameEnvs[fp] = env;
+                        frameStackBases[fp] = stackBase;
+                        fp++;
+                        for (int i = 0; i < n; i++) {
+                            stack[base + i] = stack[base + 1 + i];
+                            nums[base + i] = nums[base + 1 + i];
+                        }
+                        stackBase = base;
+                    }
+                    current = BytecodeCompiler.bodyOf(entry);
+                    code = current.code;
+                    constants = current.constants;
+                    pc = 0;
+                    env = entry.getDefiningEnvironment();
+                    sp = stackBase + current.maxLocals;
+                    ensureStack(sp + current.maxStack);
+                    stack = this.stack;
+                    nums = this.nums;
+                    break;
+                }
+                case RETURN: {
+                    Object result = stack[sp - 1];
+                    long num = nums[sp - 1];
+                    if (fp == 0) {
+                        return result == UNBOXED ? Expression.ofInt(num) : (Expression) result;
+                    }
+                    // the result replaces the function and arguments the caller pushed, where this frame starts
+                    sp = stackBase;
+                    fp--;
+                    current = frameCodes[fp];
+                    code = current.code;
+                    constants = current.constants;
+                    pc = framePcs[fp];
+                    env = frameEnvs[fp];
+                    stackBase = frameStackBases[fp];
+                    frameCodes[fp] = null;
+                    frameEnvs[fp] = null;
+                    stack[sp] = result;
+                    nums[sp++] = num;
+                    break;
+                }
+                case ERROR:
+                    throw new Trefoil2.TrefoilError.AbstractSyntaxError((String) constants[code[pc]]);
+                default:
+                    throw new Trefoil2.InternalInterpreterError("\"impossible\" opcode " + code[pc - 1]);
+            }
+        }
+    }
+
+    // Stores v in stack slot i, unboxing it if it is an integer. Used for values that come from
+    // outside the VM's own arithmetic, like list elements, so that arithmetic on them stays unboxed.
+    private void push(int i, Expression v) {
+        if (v instanceof Expression.IntegerLiteral) {
+            stack[i] = UNBOXED;
+            nums[i] = ((Expression.IntegerLiteral) v).getData();
+        } else {
+            stack[i] = v;
+        }
+    }
+
+    // Returns the value in stack slot i, boxing it if it is an integer.
+    private Expression value(int i) {
+        Object v = stack[i];
+        return v == UNBOXED ? Expression.ofInt(nums[i]) : (Expression) v;
+    }
+
+    private void ensureStack(int size) {
+        if (size > stack.length) {
+            int capacity = Math.max(size, stack.length * 2);
+            stack = Arrays.copyOf(stack, capacity);
+            nums = Arrays.copyOf(nums, capacity);
+        }
+    }
+
+    private void growFrames(int fp) {
+        if (fp >= limit) {
+            throw new Trefoil2.TrefoilError.RuntimeError(
+                    "recursion is too deep (exceeded the stack budget of " + limit + " frames)");
+        }
+        int capacity = (int) Math.min((long) fp * 2, limit);
+        frameCodes = Arrays.copyOf(frameCodes, capacity);
+        framePcs = Arrays.copyOf(framePcs, capacity);
+        frameEnvs = Arrays.copyOf(frameEnvs, capacity);
+        frameStackBases = Arrays.copyOf(frameStackBases, capacity);
+    }
+
+    private static Expression global(Code current, int k, Interpreter.DynamicEnvironment env) {
+        Cached c = (Cached) current.caches[k];
+        if (c != null && c.map == env.getMap()) {
+            return (Expression) c.found;
+        }
+        String varname = (String) current.constants[k];
+        Interpreter.DynamicEnvironment.Entry entry = env.getMap().get(varname);
+        if (!(entry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry)) {
+            return env.getVariable(varname);  // reports the error
+        }
+        Expression value = ((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue();
+        current.caches[k] = new Cached(env.getMap(), value);
+        return value;
+    }
+
+    private static Interpreter.DynamicEnvironment.Entry.FunctionEntry function(
+            Code current, int k, Interpreter.DynamicEnvironment env) {
+        Cached c = (Cached) current.caches[k];
+        if (c != null && c.map == env.getMap()) {
+            return (Interpreter.DynamicEnvironment.Entry.FunctionEntry) c.found;
+        }
+        Expression.FunctionReference func = (Expression.FunctionReference) current.constants[k];
+        Interpreter.DynamicEnvironment.Entry.FunctionEntry entry = Interpreter.lookupFunction(func, env);
+        Interpreter.checkArity(func, entry.getFunctionBinding());
+        current.caches[k] = new Cached(env.getMap(), entry);
+        return entry;
+    }
+}
@@ -0,0 +1,585 @@
+package trefoil2;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compiles an expression AST into a tree of executable nodes, used by Interpreter.Engine.CLOSURE.
+ *
+ * Instead of asking "which kind of expression is this?" on every evaluation, as the tree walker
+ * does, the compiler asks once and produces a Node subclass that knows how to execute that kind
+ * of expression. Each call site of execute() then usually sees only one or two node classes,
+ * which lets the JIT inline it.
+ *
+ * Some nodes specialize themselves at run time. Global variable and function lookups remember
+ * the last top-level map they looked in and what they found there, so repeated executions
+ * against the same environment (for example, every iteration of a recursive function) skip
+ * the lookup entirely.
+ *
+ * Calls in tail position run in constant Java stack. A node in tail position is executed with
+ * executeTail(), and a call node there returns a TailCall describing the call instead of making
+ * it. The nearest enclosing non-tail call (or the top-level entry point) runs the TailCall in a loop.
+ *
+ * The compiler expects ASTs that have been through Resolver, which everything produced by the
+ * parser has.
+ */
+public class ClosureCompiler {
+    /**
+     * An executable node. execute() evaluates the expression this node was compiled from.
+     */
+    public static abstract class Node {
+        public abstract Expression execute(Interpreter.DynamicEnvironment env);
+
+        /**
+         * Like execute(), but may return a TailCall instead of a value when this node is in tail position.
+         * Only nodes that have expressions in tail position (if, let, and calls) override this.
+         */
+        Object executeTail(Interpreter.DynamicEnvironment env) {
+            return execute(env);
+        }
+    }
+
+    // A call that has been set up (arguments evaluated, frame built) but not yet made.
+    private static final class TailCall {
+        private final Node body;
+        private final Interpreter.DynamicEnvironment env;
+
+        TailCall(Node body, Interpreter.DynamicEnvironment env) {
+            this.body = body;
+            this.env = env;
+        }
+    }
+
+    // Runs body, and then whatever tail calls it returns, until a value comes out.
+    private static Expression trampoline(Node body, Interpreter.DynamicEnvironment env) {
+        Object result = body.executeTail(env);
+        while (result instanceof TailCall) {
+            TailCall call = (TailCall) result;
+            result = call.body.executeTail(call.env);
+        }
+        return (Expression) result;
+    }
+
+    /**
+     * Compiles e. Compiling never fails: errors in e are reported when the node is executed,
+     * exactly when the tree walker would report them.
+     */
+    public static Node compile(Expression e) {
+        if (e instanceof Expression.IntegerLiteral
+                || e instanceof Expression.BigIntegerLiteral
+                || e instanceof Expression.BooleanLiteral
+                || e instanceof Expression.Nil) {
+            return new ConstantNode(e);
+        } else if (e instanceof Expression.VariableReference) {
+            Expression.VariableReference var = (Expression.VariableReference) e;
+            if (var.getDepth() == 0) {
+                return new LocalNode0(var.getSlot());
+            } else if (var.getDepth() > 0) {
+                return new LocalNode(var.getDepth(), var.getSlot());
+            }
+            return new GlobalNode(var.getVarname());
+        } else if (e instanceof Expression.Plus) {
+            Expression.Plus p = (Expression.Plus) e;
+            return new PlusNode(compile(p.getLeft()), compile(p.getRight()));
+        } else if (e instanceof Expression.Minus) {
+            Expression.Minus p = (Expression.Minus) e;
+            return new MinusNode(compile(p.getLeft()), compile(p.getRight()));
+        } else if (e instanceof Expression.Times) {
+            Expression.Times p = (Expression.Times) e;
+            return new TimesNode(compile(p.getLeft()), compile(p.getRight()));
+        } else if (e instanceof Expression.Equals) {
+            Expression.Equals p = (Expression.Equals) e;
+            return new EqualsNode(compile(p.getLeft()), compile(p.getRight()));
+        } else if (e instanceof Expression.ifStatement) {
+            Expression.ifStatement p = (Expression.ifStatement) e;
+            return new IfNode(compile(p.getCondition()), compile(p.getTrueStatement()), compile(p.getFalseStatement()));
+        } else if (e instanceof Expression.let) {
+            Expression.let p = (Expression.let) e;
+            if (!(p.getTemporalEnvironment() instanceof Expression.letChildren1)) {
+                return new ErrorNode("first argument of let expression is not a definition");
+            }
+            Expression.letChildren1 f = (Expression.letChildren1) p.getTemporalEnvironment();
+            return new LetNode(f.getLocalVariable(), compile(f.getExpression()), compile(p.getExpression()));
+        } else if (e instanceof Expression.Isnil) {
+            return new IsNilNode(compile(((Expression.Isnil) e).getExpression()));
+        } else if (e instanceof Expression.Cons) {
+            Expression.Cons p = (Expression.Cons) e;
+            return new ConsNode(compile(p.getExpression1()), compile(p.getExpression2()));
+        } else if (e instanceof Expression.IsCons) {
+            return new IsConsNode(compile(((Expression.IsCons) e).getExpression()));
+        } else if (e instanceof Expression.car) {
+            return new CarNode(compile(((Expression.car) e).getExpression()));
+        } else if (e instanceof Expression.cdr) {
+            return new CdrNode(compile(((Expression.cdr) e).getExpression()));
+        } else if (e instanceof Expression.FunctionReference) {
+            Expression.FunctionReference func = (Expression.FunctionReference) e;
+            return new CallNode(func, compileAll(func.getArgs()));
+        } else if (e instanceof Expression.Findmax) {
+            return new MaxNode(compileAll(((Expression.Findmax) e).getArgs()));
+        } else {
+            throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
+        }
+    }
+
+    private static Node[] compileAll(List<Expression> es) {
+        Node[] nodes = new Node[es.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile(es.get(i));
+        }
+        return nodes;
+    }
+
+    // Returns the compiled body of the function in entry, compiling it on first use.
+    static Node bodyOf(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry) {
+        Node body = entry.getCompiledBody();
+        if (body == null) {
+            body = compile(entry.getFunctionBinding().getBody());
+            entry.setCompiledBody(body);
+        }
+        return body;
+    }
+
+    /**
+     * Runs the compiled body of the function in entry in callenv, the environment its call set up.
+     * Returns the value of the call.
+     */
+    static Expression call(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry, Interpreter.DynamicEnvironment callenv) {
+        return trampoline(bodyOf(entry), callenv);
+    }
+
+    private static class ConstantNode extends Node {
+        private final Expression value;
+
+        ConstantNode(Expression value) {
+            this.value = value;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            return value;
+        }
+    }
+
+    // A local in the innermost frame, by far the most common case.
+    private static class LocalNode0 extends Node {
+        private final int slot;
+
+        LocalNode0(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            return env.getFrame().getValues()[slot];
+        }
+    }
+
+    private static class LocalNode extends Node {
+        private final int depth, slot;
+
+        LocalNode(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            return env.getLocal(depth, slot);
+        }
+    }
+
+    // What a global lookup found in a particular top-level map. Immutable, so it can be shared between threads.
+    private static class LookupCache<T> {
+        private final PersistentMap<Interpreter.DynamicEnvironment.Entry> map;
+        private final T found;
+
+        LookupCache(PersistentMap<Interpreter.DynamicEnvironment.Entry> map, T found) {
+            this.map = map;
+            this.found = found;
+        }
+    }
+
+    private static class GlobalNode extends Node {
+        private final String varname;
+        private LookupCache<Expression> cache;
+
+        GlobalNode(String varname) {
+            this.varname = varname;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            LookupCache<Expression> c = cache;
+            if (c != null && c.map == env.getMap()) {
+                return c.found;
+            }
+            Interpreter.DynamicEnvironment.Entry entry = env.getMap().get(varname);
+            if (!(entry instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry)) {
+                return env.getVariable(varname);  // reports the error
+            }
+            Expression value = ((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue();
+            cache = new LookupCache<>(env.getMap(), value);
+            return value;
+        }
+    }
+
+    /**
+     * Plus, minus, and times. Besides execute(), these nodes have executeLong(), which returns a primitive.
+     * An arithmetic node whose operand is also arithmetic calls the operand's executeLong(), so nested
+     * arithmetic does not allocate IntegerLiterals for its intermediate results.
+     *
+     * Like Interpreter.treeWalkLong, executeLong() throws Interpreter.Promoted when the result does
+     * not fit in a long.
+     */
+    private static abstract class ArithmeticNode extends Node {
+        private final Node left, right;
+        private final ArithmeticNode leftLong, rightLong;  // the same operands, when they are arithmetic
+        private final String operator;
+
+        ArithmeticNode(Node left, Node right, String operator) {
+            this.left = left;
+            this.right = right;
+            this.leftLong = left instanceof ArithmeticNode ? (ArithmeticNode) left : null;
+            this.rightLong = right instanceof ArithmeticNode ? (ArithmeticNode) right : null;
+            this.operator = operator;
+        }
+
+        // Throws ArithmeticException on overflow.
+        abstract long apply(long a, long b);
+
+        // The same operation on arbitrary integer values.
+        abstract Expression apply(Expression v1, Expression v2);
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            try {
+                return Expression.ofInt(executeLong(env));
+            } catch (Interpreter.Promoted p) {
+                return p.value;
+            }
+        }
+
+        long executeLong(Interpreter.DynamicEnvironment env) {
+            long a = 0, b = 0;
+            Expression v1 = null, v2 = null;
+            if (leftLong != null) {
+                try {
+                    a = leftLong.executeLong(env);
+                } catch (Interpreter.Promoted p) {
+                    v1 = p.value;
+                }
+            } else {
+                v1 = left.execute(env);
+            }
+            if (rightLong != null) {
+                try {
+                    b = rightLong.executeLong(env);
+                } catch (Interpreter.Promoted p) {
+                    v2 = p.value;
+                }
+            } else {
+                v2 = right.execute(env);
+            }
+            Interpreter.checkIntegers(v1, v2, operator);
+            if ((v1 == null || v1 instanceof Expression.IntegerLiteral)
+                    && (v2 == null || v2 instanceof Expression.IntegerLiteral)) {
+                if (v1 != null) {
+                    a = ((Expression.IntegerLiteral) v1).getData();
+                }
+                if (v2 != null) {
+                    b = ((Expression.IntegerLiteral) v2).getData();
+                }
+                try {
+                    return apply(a, b);
+                } catch (ArithmeticException overflow) {
+                    v1 = Expression.ofInt(a);
+                    v2 = Expression.ofInt(b);
+                }
+            }
+            Expression result = apply(v1 == null ? Expression.ofInt(a) : v1, v2 == null ? Expression.ofInt(b) : v2);
+            if (result instanceof Expression.IntegerLiteral) {
+                return ((Expression.IntegerLiteral) result).getData();
+            }
+            throw new Interpreter.Promoted(result);
+        }
+    }
+
+    private static class PlusNode extends ArithmeticNode {
+        PlusNode(Node left, Node right) {
+            super(left, right, "plus");
+        }
+
+        @Override
+        long apply(long a, long b) {
+            return Math.addExact(a, b);
+        }
+
+        @Override
+        Expression apply(Expression v1, Expression v2) {
+            return Interpreter.plus(v1, v2);
+        }
+    }
+
+    private static class MinusNode extends ArithmeticNode {
+        MinusNode(Node left, Node right) {
+            super(left, right, "minus");
+        }
+
+        @Override
+        long apply(long a, long b) {
+            return Math.subtractExact(a, b);
+        }
+
+        @Override
+        Expression apply(Expression v1, Expression v2) {
+            return Interpreter.minus(v1, v2);
+        }
+    }
+
+    private static class TimesNode extends ArithmeticNode {
+        TimesNode(Node left, Node right) {
+            super(left, right, "times");
+        }
+
+        @Override
+        long apply(long a, long b) {
+            return Math.multiplyExact(a, b);
+        }
+
+        @Override
+        Expression apply(Expression v1, Expression v2) {
+            return Interpreter.times(v1, v2);
+        }
+    }
+
+    private static class EqualsNode extends Node {
+        private final Node left, right;
+
+        EqualsNode(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            return Interpreter.equals(left.execute(env), right.execute(env));
+        }
+    }
+
+    private static class IfNode extends Node {
+        private final Node condition, trueBranch, falseBranch;
+
+        IfNode(Node condition, Node trueBranch, Node falseBranch) {
+            this.condition = condition;
+            this.trueBranch = trueBranch;
+            this.falseBranch = falseBranch;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            if (Interpreter.isFalse(condition.execute(env))) {
+                return falseBranch.execute(env);
+            } else {
+                return trueBranch.execute(env);
+            }
+        }
+
+        @Override
+        Object executeTail(Interpreter.DynamicEnvironment env) {
+            if (Interpreter.isFalse(condition.execute(env))) {
+                return falseBranch.executeTail(env);
+            } else {
+                return trueBranch.executeTail(env);
+            }
+        }
+    }
+
+    private static class LetNode extends Node {
+        private final List<String> names;
+        private final Node value, body;
+
+        LetNode(String name, Node value, Node body) {
+            this.names = Collections.singletonList(name);
+            this.value = value;
+            this.body = body;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            Expression v = value.execute(env);
+            return body.execute(env.extendFrame(names, new Expression[]{v}));
+        }
+
+        @Override
+        Object executeTail(Interpreter.DynamicEnvironment env) {
+            Expression v = value.execute(env);
+            return body.executeTail(env.extendFrame(names, new Expression[]{v}));
+        }
+    }
+
+    private static class IsNilNode extends Node {
+        private final Node operand;
+
+        IsNilNode(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            return Interpreter.isNil(operand.execute(env));
+        }
+    }
+
+    private static class ConsNode extends Node {
+        private final Node first, second;
+
+        ConsNode(Node first, Node second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            Expression v1 = first.execute(env);
+            Expression v2 = second.execute(env);
+            return new Expression.Cons(v1, v2);
+        }
+    }
+
+    private static class IsConsNode extends Node {
+        private final Node operand;
+
+        IsConsNode(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            return Interpreter.isCons(operand.execute(env));
+        }
+    }
+
+    private static class CarNode extends Node {
+        private final Node operand;
+
+        CarNode(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            return Interpreter.car(operand.execute(env));
+        }
+    }
+
+    private static class CdrNode extends Node {
+        private final Node operand;
+
+        CdrNode(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            return Interpreter.cdr(operand.execute(env));
+        }
+    }
+
+    private static class MaxNode extends Node {
+        private final Node[] args;
+
+        MaxNode(Node[] args) {
+            this.args = args;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            Expression maxVal = Interpreter.maxArgument(args[0].execute(env));
+            for (int i = 1; i < args.length; i++) {
+                maxVal = Interpreter.max(maxVal, Interpreter.maxArgument(args[i].execute(env)));
+            }
+            return maxVal;
+        }
+    }
+
+    private static class CallNode extends Node {
+        private final Expression.FunctionReference func;
+        private final Node[] args;
+        private LookupCache<Interpreter.DynamicEnvironment.Entry.FunctionEntry> cache;
+
+        CallNode(Expression.FunctionReference func, Node[] args) {
+            this.func = func;
+            this.args = args;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            Object result = prepare(env);
+            if (result instanceof TailCall) {
+                TailCall call = (TailCall) result;
+                return trampoline(call.body, call.env);
+            }
+            return (Expression) result;
+        }
+
+        @Override
+        Object executeTail(Interpreter.DynamicEnvironment env) {
+            return prepare(env);
+        }
+
+        // Looks up the function and evaluates the arguments, but does not run the body, unless the
+        // function is memoized or (under TIERED) JVM-compiled. Returns the result of such a call, and
+        // the TailCall otherwise.
+        private Object prepare(Interpreter.DynamicEnvironment env) {
+            Interpreter.DynamicEnvironment.Entry.FunctionEntry entry;
+            LookupCache<Interpreter.DynamicEnvironment.Entry.FunctionEntry> c = cache;
+            if (c != null && c.map == env.getMap()) {
+                entry = c.found;
+            } else {
+                entry = Interpreter.lookupFunction(func, env);
+                Interpreter.checkArity(func, entry.getFunctionBinding());
+                cache = new LookupCache<>(env.getMap(), entry);
+            }
+            Expression[] vals = new Expression[args.length];
+            for (int i = 0; i < vals.length; i++) {
+                vals[i] = args[i].execute(env);
+            }
+            Memoizer.Key key = Memoizer.key(entry, vals);
+            if (key != null) {
+                Expression result = Memoizer.get(key);
+                if (result != null) {
+                    return result;
+                }
+            }
+            if (Interpreter.getEngine() == Interpreter.Engine.TIERED) {
+                // memoized functions are never JVM-compiled, so there is nothing to cache here
+                Expression result = Tiering.callFromClosure(entry, vals, env);
+                if (result != null) {
+                    return result;
+                }
+            }
+            Interpreter.DynamicEnvironment callenv =
+                    entry.getDefiningEnvironment().extendFrame(entry.getFunctionBinding().getArgnames(), vals);
+            if (key != null) {
+                Expression result = trampoline(bodyOf(entry), callenv);
+                Memoizer.put(key, result);
+                return result;
+            }
+            return new TailCall(bodyOf(entry), callenv);
+        }
+    }
+
+    // Reports a malformed AST when it is executed, which is when the tree walker would report it.
+    private static class ErrorNode extends Node {
+        private final String message;
+
+        ErrorNode(String message) {
+            this.message = message;
+        }
+
+        @Override
+        public Expression execute(Interpreter.DynamicEnvironment env) {
+            throw new Trefoil2.TrefoilError.AbstractSyntaxError(message);
+        }
+    }
+}
@@ -1,10 +1,17 @@
 package trefoil2;
 
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
 
+import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
+import java.util.Objects;
 
 /**
  * An expression AST. See LANGUAGE.md for a list of possibilities.
@@ -14,11 +21,28 @@ public abstract class Expression {
     @EqualsAndHashCode(callSuper = true)
     @Data
     public static class IntegerLiteral extends Expression {
-        private final int data;
+        private final long data;
 
         @Override
         public String toString() {
-            return Integer.toString(data);
+            return Long.toString(data);
+        }
+    }
+
+    /**
+     * An integer too big to fit in a long. Arithmetic promotes to this on overflow.
+     *
+     * Always construct these with Expression.ofBigInteger, which returns an IntegerLiteral instead whenever
+     * the value fits. That way each integer has exactly one representation, and equals works as expected.
+     */
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class BigIntegerLiteral extends Expression {
+        private final BigInteger data;
+
+        @Override
+        public String toString() {
+            return data.toString();
         }
     }
 
@@ -37,6 +61,26 @@ public abstract class Expression {
     @Data
     public static class VariableReference extends Expression {
         private final String varname;
+
+        // Lexical address filled in by Resolver: the variable is in the local frame depth levels up,
+        // at index slot. depth is -1 when the name is not bound by an enclosing let or parameter,
+        // in which case it is looked up by name.
+        @EqualsAndHashCode.Exclude
+        @ToString.Exclude
+        private final int depth;
+        @EqualsAndHashCode.Exclude
+        @ToString.Exclude
+        private final int slot;
+
+        public VariableReference(String varname) {
+            this(varname, -1, -1);
+        }
+
+        public VariableReference(String varname, int depth, int slot) {
+            this.varname = varname;
+            this.depth = depth;
+            this.slot = slot;
+        }
     }
 
     @EqualsAndHashCode(callSuper = true)
@@ -93,10 +137,73 @@ public abstract class Expression {
         private final Expression expression;
     }
 
-    @EqualsAndHashCode(callSuper = true)
+    /**
+     * A cons cell. Lists can be far longer than the Java stack is deep, so unlike the other nodes, equals,
+     * hashCode, and toString do not recurse down them.
+     *
+     * Cons cells are immutable, so the hash is computed once, in the constructor, from the hashes of the
+     * two parts. Since a cons's hash is already known by the time it becomes the tail of another, that
+     * takes constant time, and so does every hashCode() after it.
+     */
     @Data
     public static class Cons extends Expression {
         private final Expression expression1, expression2;
+        @Getter(AccessLevel.NONE)
+        private final int hash;
+
+        public Cons(Expression expression1, Expression expression2) {
+            this.expression1 = expression1;
+            this.expression2 = expression2;
+            this.hash = 31 * (31 + Objects.hashCode(expression1)) + Objects.hashCode(expression2);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        // Walks down the lists together, and keeps pairs of nested lists to compare on a stack.
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Cons)) {
+                return false;
+            }
+            Deque<Cons> pending = new ArrayDeque<>();
+            pending.push(this);
+            pending.push((Cons) o);
+            while (!pending.isEmpty()) {
+                Expression b = pending.pop();
+                Expression a = pending.pop();
+                while (a instanceof Cons && b instanceof Cons) {
+                    Cons c1 = (Cons) a;
+                    Cons c2 = (Cons) b;
+                    if (c1 == c2) {
+                        break;
+                    }
+                    if (c1.hash != c2.hash) {
+                        return false;
+                    }
+                    if (c1.expression1 instanceof Cons && c2.expression1 instanceof Cons) {
+                        pending.push((Cons) c1.expression1);
+                        pending.push((Cons) c2.expression1);
+                    } else if (!Objects.equals(c1.expression1, c2.expression1)) {
+                        return false;
+                    }
+                    a = c1.expression2;
+                    b = c2.expression2;
+                }
+                if (a != b && (a instanceof Cons || b instanceof Cons || !Objects.equals(a, b))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Same as the Lombok toString, but without recursion down the list (see ValuePrinter).
+        @Override
+        public String toString() {
+            return ValuePrinter.UNLIMITED.toString(this);
+        }
     }
 
     @EqualsAndHashCode(callSuper = true)
@@ -122,6 +229,26 @@ public abstract class Expression {
     public static class FunctionReference extends Expression {
         private final String funname;
         private final List<Expression> args;
+
+        // Lexical address of funname, filled in by Resolver. Functions are only defined at top level,
+        // so a depth other than -1 means a local variable shadows the function.
+        @EqualsAndHashCode.Exclude
+        @ToString.Exclude
+        private final int depth;
+        @EqualsAndHashCode.Exclude
+        @ToString.Exclude
+        private final int slot;
+
+        public FunctionReference(String funname, List<Expression> args) {
+            this(funname, args, -1, -1);
+        }
+
+        public FunctionReference(String funname, List<Expression> args, int depth, int slot) {
+            this.funname = funname;
+            this.args = args;
+            this.depth = depth;
+            this.slot = slot;
+        }
     }
 
     @EqualsAndHashCode(callSuper = true)
@@ -130,15 +257,40 @@ public abstract class Expression {
         private final List<Expression> args;
     }
 
+    // Values are immutable, so the common ones are shared instead of allocated over and over.
+    private static final BooleanLiteral TRUE = new BooleanLiteral(true);
+    private static final BooleanLiteral FALSE = new BooleanLiteral(false);
+    private static final Nil NIL = new Nil();
+    private static final int SMALL_INT_MIN = -128;
+    private static final int SMALL_INT_MAX = 1024;
+    private static final IntegerLiteral[] SMALL_INTS = new IntegerLiteral[SMALL_INT_MAX - SMALL_INT_MIN + 1];
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+    static {
+        for (int i = 0; i < SMALL_INTS.length; i++) {
+            SMALL_INTS[i] = new IntegerLiteral(SMALL_INT_MIN + i);
+        }
+    }
+
     // Convenience factory methods
-    public static IntegerLiteral ofInt(int x) {
+    // Prefer these to the constructors: they do not allocate for booleans, nil, and small integers.
+    public static IntegerLiteral ofInt(long x) {
+        if (x >= SMALL_INT_MIN && x <= SMALL_INT_MAX) {
+            return SMALL_INTS[(int) (x - SMALL_INT_MIN)];
+        }
         return new IntegerLiteral(x);
     }
+    public static Expression ofBigInteger(BigInteger x) {
+        if (x.compareTo(LONG_MIN) >= 0 && x.compareTo(LONG_MAX) <= 0) {
+            return ofInt(x.longValue());
+        }
+        return new BigIntegerLiteral(x);
+    }
     public static BooleanLiteral ofBoolean(boolean b) {
-        return new BooleanLiteral(b);
+        return b ? TRUE : FALSE;
     }
     public static Expression nil() {
-        return new Nil();
+        return NIL;
     }
     public static Expression cons(Expression e1, Expression e2) {
         return new Cons(e1, e2);
@@ -157,22 +309,28 @@ public abstract class Expression {
             // If it is a symbol, it is either a number, a symbol keyword, or a variable reference.
             ParenthesizedSymbolTree.Symbol symbol = (ParenthesizedSymbolTree.Symbol) pst;
             String s = symbol.getSymbol();
-            try {
-                return Expression.ofInt(Integer.parseInt(s));
-            } catch (NumberFormatException e) {
-                switch (s) {
-                    case "true":
-                        return new BooleanLiteral(true);
-                    case "false":
-                        return new BooleanLiteral(false);
-                    case "nil":
-                        return new Nil();
-
-                    // if the symbol is not a symbol keyword, then it represents a variable reference
-                    default:
-                        return new VariableReference(s);
+            // Check the characters first, rather than letting Long.parseLong throw for every non-number symbol.
+            if (isIntegerSymbol(s)) {
+                try {
+                    return Expression.ofInt(Long.parseLong(s));
+                } catch (NumberFormatException e) {
+                    // too big for a long
+                    return Expression.ofBigInteger(new BigInteger(s));
                 }
             }
+            // Symbols are interned (see parser.SymbolTable), so these comparisons succeed on identity.
+            switch (s) {
+                case "true":
+                    return ofBoolean(true);
+                case "false":
+                    return ofBoolean(false);
+                case "nil":
+                    return nil();
+
+                // if the symbol is not a symbol keyword, then it represents a variable reference
+                default:
+                    return new VariableReference(s);
+            }
         } else {
             // Otherwise it is a Node, in which case it might be a built-in form with a node keyword,
             // or if not, then it is a function call.
@@ -275,9 +433,24 @@ public abstract class Expression {
         }
     }
 
+    // Returns whether s is an optional sign followed by one or more digits, exactly the symbols Long.parseLong accepts
+    // (if they are in range).
+    private static boolean isIntegerSymbol(String s) {
+        int start = s.length() > 1 && (s.charAt(0) == '-' || s.charAt(0) == '+') ? 1 : 0;
+        if (start == s.length()) {
+            return false;
+        }
+        for (int i = start; i < s.length(); i++) {
+            if (Character.digit(s.charAt(i), 10) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // Convenience factory method for unit tests.
     public static Expression parseString(String s) {
-        return parsePST(ParenthesizedSymbolTree.parseString(s));
+        return Resolver.resolve(parsePST(ParenthesizedSymbolTree.parseString(s)));
     }
 }
 
@@ -0,0 +1,336 @@
+package trefoil2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inlines calls to small, non-recursive functions. Part of the Optimizer (see Optimizer.optimize(Binding, ...)).
+ *
+ * Inlining needs to know which function a call calls, so unlike the rest of the Optimizer it runs when a
+ * binding is about to be interpreted, in the environment it will be interpreted in. A call (f a1 ... an)
+ * of a function whose body is at most MAX_SIZE nodes is replaced by
+ *
+ *   (let ((x1' a1)) ... (let ((xn' an)) body'))
+ *
+ * where body' is f's body with each parameter xi renamed to a fresh name xi'. Fresh names contain a
+ * space, which no symbol in a program can, so they never clash with the caller's variables. The
+ * arguments are still evaluated once each, left to right, before the body, just as the call would;
+ * the Optimizer then removes the lets of the arguments that are values.
+ *
+ * f's body runs in f's defining environment (FunctionEntry.definingEnvironment), but the inlined copy runs
+ * wherever the call is. So a call is only inlined when that does not change what any name in the body
+ * refers to:
+ * - every global variable and function the body mentions is bound to the very same entry where the call
+ *   is as in f's defining environment, so none has been redefined since f was,
+ * - none of those names is bound by a local variable around the call, and
+ * - the body does not mention f itself, which would make it recursive, nor the function being defined,
+ *   whose name means the new definition in the caller but an older one (if any) in f.
+ * Nor are calls of memoized functions (see Memoizer), whose results would then not be cached.
+ *
+ * f's own body was inlined when f was defined, so calls nested in it are already inlined as far as they can be.
+ */
+public class Inliner {
+    // Calls of functions whose bodies have more nodes than this are not inlined.
+    static final int MAX_SIZE = 24;
+
+    private static final AtomicInteger freshNames = new AtomicInteger();
+
+    private final Interpreter.DynamicEnvironment env;
+    private final String definedFunction;
+    private int inlined = 0;
+
+    private Inliner(Interpreter.DynamicEnvironment env, String definedFunction) {
+        this.env = env;
+        this.definedFunction = definedFunction;
+    }
+
+    /**
+     * Inlines the calls in e that can be inlined, where e will be evaluated in env, inside the body of
+     * definedFunction with parameters params (both null outside of a function definition).
+     *
+     * Returns e itself if nothing was inlined. Otherwise returns a new AST, which has to be resolved again.
+     */
+    static Expression inline(Expression e, Interpreter.DynamicEnvironment env, String definedFunction, List<String> params) {
+        Inliner inliner = new Inliner(env, definedFunction);
+        Set<String> locals = params == null ? new HashSet<>() : new HashSet<>(params);
+        Expression result = inliner.inline(e, locals);
+        return inliner.inlined == 0 ? e : result;
+    }
+
+    // locals are the names of the local variables in scope around e.
+    private Expression inline(Expression e, Set<String> locals) {
+        if (e instanceof Expression.IntegerLiteral
+                || e instanceof Expression.BigIntegerLiteral
+                || e instanceof Expression.BooleanLiteral
+                || e instanceof Expression.Nil
+                || e instanceof Expression.VariableReference) {
+            return e;
+        } else if (e instanceof Expression.Plus) {
+            Expression.Plus p = (Expression.Plus) e;
+            return new Expression.Plus(inline(p.getLeft(), locals), inline(p.getRight(), locals));
+        } else if (e instanceof Expression.Minus) {
+            Expression.Minus p = (Expression.Minus) e;
+            return new Expression.Minus(inline(p.getLeft(), locals), inline(p.getRight(), locals));
+        } else if (e instanceof Expression.Times) {
+            Expression.Times p = (Expression.Times) e;
+            return new Expression.Times(inline(p.getLeft(), locals), inline(p.getRight(), locals));
+        } else if (e instanceof Expression.Equals) {
+            Expression.Equals p = (Expression.Equals) e;
+            return new Expression.Equals(inline(p.getLeft(), locals), inline(p.getRight(), locals));
+        } else if (e instanceof Expression.ifStatement) {
+            Expression.ifStatement p = (Expression.ifStatement) e;
+            return new Expression.ifStatement(inline(p.getCondition(), locals),
+                    inline(p.getTrueStatement(), locals),
+                    inline(p.getFalseStatement(), locals));
+        } else if (e instanceof Expression.let) {
+            Expression.let p = (Expression.let) e;
+            if (!(p.getTemporalEnvironment() instanceof Expression.letChildren1)) {
+                return e;
+            }
+            Expression.letChildren1 f = (Expression.letChildren1) p.getTemporalEnvironment();
+            Set<String> inner = new HashSet<>(locals);
+            inner.add(f.getLocalVariable());
+            return new Expression.let(
+                    new Expression.letChildren1(f.getLocalVariable(), inline(f.getExpression(), locals)),
+                    inline(p.getExpression(), inner));
+        } else if (e instanceof Expression.Isnil) {
+            return new Expression.Isnil(inline(((Expression.Isnil) e).getExpression(), locals));
+        } else if (e instanceof Expression.Cons) {
+            Expression.Cons p = (Expression.Cons) e;
+            return new Expression.Cons(inline(p.getExpression1(), locals), inline(p.getExpression2(), locals));
+        } else if (e instanceof Expression.IsCons) {
+            return new Expression.IsCons(inline(((Expression.IsCons) e).getExpression(), locals));
+        } else if (e instanceof Expression.car) {
+            return new Expression.car(inline(((Expression.car) e).getExpression(), locals));
+        } else if (e instanceof Expression.cdr) {
+            return new Expression.cdr(inline(((Expression.cdr) e).getExpression(), locals));
+        } else if (e instanceof Expression.FunctionReference) {
+            Expression.FunctionReference func = (Expression.FunctionReference) e;
+            List<Expression> args = inlineAll(func.getArgs(), locals);
+            Interpreter.DynamicEnvironment.Entry.FunctionEntry callee = inlinable(func, locals);
+            if (callee == null) {
+                return new Expression.FunctionReference(func.getFunname(), args);
+            }
+            inlined++;
+            return substitute(callee.getFunctionBinding(), args);
+        } else if (e instanceof Expression.Findmax) {
+            return new Expression.Findmax(inlineAll(((Expression.Findmax) e).getArgs(), locals));
+        } else {
+            throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
+        }
+    }
+
+    private List<Expression> inlineAll(List<Expression> es, Set<String> locals) {
+        List<Expression> inlined = new ArrayList<>(es.size());
+        for (Expression e : es) {
+            inlined.add(inline(e, locals));
+        }
+        return inlined;
+    }
+
+    // Returns the function func calls if the call can be inlined (see the class comment), or null.
+    private Interpreter.DynamicEnvironment.Entry.FunctionEntry inlinable(Expression.FunctionReference func, Set<String> locals) {
+        String funname = func.getFunname();
+        if (locals.contains(funname) || funname.equals(definedFunction)) {
+            return null;
+        }
+        Interpreter.DynamicEnvironment.Entry entry = env.getMap().get(funname);
+        if (!(entry instanceof Interpreter.DynamicEnvironment.Entry.FunctionEntry)) {
+            return null;
+        }
+        Interpreter.DynamicEnvironment.Entry.FunctionEntry callee = (Interpreter.DynamicEnvironment.Entry.FunctionEntry) entry;
+        if (Memoizer.isMemoized(callee)) {
+            // inlined calls would not be cached
+            return null;
+        }
+        Binding.FunctionBinding binding = callee.getFunctionBinding();
+        Interpreter.DynamicEnvironment defenv = callee.getDefiningEnvironment();
+        if (binding.getArgnames().size() != func.getArgs().size()
+                || defenv.getFrame() != null
+                || size(binding.getBody()) > MAX_SIZE) {
+            return null;
+        }
+
+        Set<String> globals = new HashSet<>();
+        if (!globalNames(binding.getBody(), new HashSet<>(binding.getArgnames()), globals)) {
+            return null;
+        }
+        for (String name : globals) {
+            if (name.equals(funname) || name.equals(definedFunction) || locals.contains(name)
+                    || env.getMap().get(name) != defenv.getMap().get(name)) {
+                return null;
+            }
+        }
+        return callee;
+    }
+
+    // Adds the names of the global variables and functions that e mentions to globals. Returns false if e
+    // has something that inlining would change the meaning of: a malformed let, or a call of a local variable.
+    private static boolean globalNames(Expression e, Set<String> locals, Set<String> globals) {
+        if (e instanceof Expression.VariableReference) {
+            String varname = ((Expression.VariableReference) e).getVarname();
+            if (!locals.contains(varname)) {
+                globals.add(varname);
+            }
+            return true;
+        } else if (e instanceof Expression.let) {
+            Expression.let p = (Expression.let) e;
+            if (!(p.getTemporalEnvironment() instanceof Expression.letChildren1)) {
+                return false;
+            }
+            Expression.letChildren1 f = (Expression.letChildren1) p.getTemporalEnvironment();
+            Set<String> inner = new HashSet<>(locals);
+            inner.add(f.getLocalVariable());
+            return globalNames(f.getExpression(), locals, globals) && globalNames(p.getExpression(), inner, globals);
+        } else if (e instanceof Expression.FunctionReference) {
+            Expression.FunctionReference func = (Expression.FunctionReference) e;
+            if (locals.contains(func.getFunname())) {
+                return false;
+            }
+            globals.add(func.getFunname());
+        }
+        for (Expression child : children(e)) {
+            if (!globalNames(child, locals, globals)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns (let ((x1' a1)) ... (let ((xn' an)) body')) for a call of binding with arguments args.
+    private static Expression substitute(Binding.FunctionBinding binding, List<Expression> args) {
+        Map<String, String> renames = new HashMap<>();
+        List<String> fresh = new ArrayList<>();
+        for (String param : binding.getArgnames()) {
+            String name = param + " " + freshNames.incrementAndGet();
+            renames.put(param, name);
+            fresh.add(name);
+        }
+        Expression result = rename(binding.getBody(), renames);
+        for (int i = args.size() - 1; i >= 0; i--) {
+            result = new Expression.let(new Expression.letChildren1(fresh.get(i), args.get(i)), result);
+        }
+        return result;
+    }
+
+    // Renames the variables in e according to renames, except where a let shadows them.
+    private static Expression rename(Expression e, Map<String, String> renames) {
+        if (e instanceof Expression.VariableReference) {
+            String varname = ((Expression.VariableReference) e).getVarname();
+            return new Expression.VariableReference(renames.getOrDefault(varname, varname));
+        } else if (e instanceof Expression.Plus) {
+            Expression.Plus p = (Expression.Plus) e;
+            return new Expression.Plus(rename(p.getLeft(), renames), rename(p.getRight(), renames));
+        } else if (e instanceof Expression.Minus) {
+            Expression.Minus p = (Expression.Minus) e;
+            return new Expression.Minus(rename(p.getLeft(), renames), rename(p.getRight(), renames));
+        } else if (e instanceof Expression.Times) {
+            Expression.Times p = (Expression.Times) e;
+            return new Expression.Times(rename(p.getLeft(), renames), rename(p.getRight(), renames));
+        } else if (e instanceof Expression.Equals) {
+            Expression.Equals p = (Expression.Equals) e;
+            return new Expression.Equals(rename(p.getLeft(), renames), rename(p.getRight(), renames));
+        } else if (e instanceof Expression.ifStatement) {
+            Expression.ifStatement p = (Expression.ifStatement) e;
+            return new Expression.ifStatement(rename(p.getCondition(), renames),
+                    rename(p.getTrueStatement(), renames),
+                    rename(p.getFalseStatement(), renames));
+        } else if (e instanceof Expression.let) {
+            // well formed, as globalNames checked
+            Expression.let p = (Expression.let) e;
+            Expression.letChildren1 f = (Expression.letChildren1) p.getTemporalEnvironment();
+            Map<String, String> inner = renames;
+            if (renames.containsKey(f.getLocalVariable())) {
+                inner = new HashMap<>(renames);
+                inner.remove(f.getLocalVariable());
+            }
+            return new Expression.let(
+                    new Expression.letChildren1(f.getLocalVariable(), rename(f.getExpression(), renames)),
+                    rename(p.getExpression(), inner));
+        } else if (e instanceof Expression.Isnil) {
+            return new Expression.Isnil(rename(((Expression.Isnil) e).getExpression(), renames));
+        } else if (e instanceof Expression.Cons) {
+            Expression.Cons p = (Expression.Cons) e;
+            return new Expression.Cons(rename(p.getExpression1(), renames), rename(p.getExpression2(), renames));
+        } else if (e instanceof Expression.IsCons) {
+            return new Expression.IsCons(rename(((Expression.IsCons) e).getExpression(), renames));
+        } else if (e instanceof Expression.car) {
+            return new Expression.car(rename(((Expression.car) e).getExpression(), renames));
+        } else if (e instanceof Expression.cdr) {
+            return new Expression.cdr(rename(((Expression.cdr) e).getExpression(), renames));
+        } else if (e instanceof Expression.FunctionReference) {
+            Expression.FunctionReference func = (Expression.FunctionReference) e;
+            List<Expression> args = new ArrayList<>();
+            for (Expression arg : func.getArgs()) {
+                args.add(rename(arg, renames));
+            }
+            return new Expression.FunctionReference(func.getFunname(), args);
+        } else if (e instanceof Expression.Findmax) {
+            List<Expression> args = new ArrayList<>();
+            for (Expression arg : ((Expression.Findmax) e).getArgs()) {
+                args.add(rename(arg, renames));
+            }
+            return new Expression.Findmax(args);
+        }
+        return e;  // literals
+    }
+
+    // The number of AST nodes in e.
+    static int size(Expression e) {
+        int size = 1;
+        for (Expression child : children(e)) {
+            size += size(child);
+        }
+        return size;
+    }
+
+    // The direct subexpressions of e.
+    private static List<Expression> children(Expression e) {
+        List<Expression> children = new ArrayList<>();
+        if (e instanceof Expression.Plus) {
+            children.add(((Expression.Plus) e).getLeft());
+            children.add(((Expression.Plus) e).getRight());
+        } else if (e instanceof Expression.Minus) {
+            children.add(((Expression.Minus) e).getLeft());
+            children.add(((Expression.Minus) e).getRight());
+        } else if (e instanceof Expression.Times) {
+            children.add(((Expression.Times) e).getLeft());
+            children.add(((Expression.Times) e).getRight());
+        } else if (e instanceof Expression.Equals) {
+            children.add(((Expression.Equals) e).getLeft());
+            children.add(((Expression.Equals) e).getRight());
+        } else if (e instanceof Expression.ifStatement) {
+            Expression.ifStatement p = (Expression.ifStatement) e;
+            children.add(p.getCondition());
+            children.add(p.getTrueStatement());
+            children.add(p.getFalseStatement());
+        } else if (e instanceof Expression.let) {
+            Expression.let p = (Expression.let) e;
+            if (p.getTemporalEnvironment() instanceof Expression.letChildren1) {
+                children.add(((Expression.letChildren1) p.getTemporalEnvironment()).getExpression());
+            }
+            children.add(p.getExpression());
+        } else if (e instanceof Expression.Isnil) {
+            children.add(((Expression.Isnil) e).getExpression());
+        } else if (e instanceof Expression.Cons) {
+            children.add(((Expression.Cons) e).getExpression1());
+            children.add(((Expression.Cons) e).getExpression2());
+        } else if (e instanceof Expression.IsCons) {
+            children.add(((Expression.IsCons) e).getExpression());
+        } else if (e instanceof Expression.car) {
+            children.add(((Expression.car) e).getExpression());
+        } else if (e instanceof Expression.cdr) {
+            children.add(((Expression.cdr) e).getExpression());
+        } else if (e instanceof Expression.FunctionReference) {
+            children.addAll(((Expression.FunctionReference) e).getArgs());
+        } else if (e instanceof Expression.Findmax) {
+            children.addAll(((Expression.Findmax) e).getArgs());
+        }
+        return children;
+    }
+}
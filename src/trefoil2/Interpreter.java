@@ -1,176 +1,452 @@
 package trefoil2;
 
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Setter;
 import lombok.ToString;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Interprets expressions and bindings in the context of a dynamic environment
  * according to the semantics of Trefoil v2.
  */
 public class Interpreter {
+    // Where interpretBinding echoes the results of top-level bindings, unless told otherwise.
+    private static Output output = Output.of(System.out);
+
+    /**
+     * Sets the default output sink used by interpretBinding. Pass an Output.Memory to capture the
+     * output, or Output.DISCARD to silence the echo.
+     */
+    public static void setOutput(Output out) {
+        output = out;
+    }
+
+    /**
+     * Same as setOutput(Output.of(out)).
+     */
+    public static void setOutput(PrintStream out) {
+        output = Output.of(out);
+    }
+
     /**
-     * Evaluates e in the given environment. Returns the resulting value.
+     * The ways this interpreter can evaluate an expression. All of them implement the same semantics.
+     * - TREE walks the Expression AST directly (treeWalk below).
+     * - CLOSURE first compiles the AST into a tree of executable nodes (see ClosureCompiler).
+     * - STACK keeps its continuations on the heap instead of the Java stack (see StackMachine).
+     * - BYTECODE compiles the AST into flat bytecode and runs it on a stack VM (see BytecodeCompiler and BytecodeVM).
+     * - JVM walks the AST like TREE, but calls numeric functions through JVM bytecode generated for them (see JvmCompiler).
+     * - TIERED walks the AST like TREE, and switches functions that get called often to a compiled form (see Tiering).
+     */
+    public enum Engine {
+        TREE, CLOSURE, STACK, BYTECODE, JVM, TIERED;
+
+        public static Engine parse(String name) {
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("unknown engine " + name);
+            }
+        }
+    }
+
+    // The engine used by interpretExpression. The system property makes it easy to run the tests on another engine.
+    private static Engine engine = Engine.parse(System.getProperty("trefoil.engine", "tree"));
+
+    public static void setEngine(Engine e) {
+        engine = e;
+    }
+
+    public static Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Evaluates e in the given environment using the current engine. Returns the resulting value.
      *
      * Throws TrefoilError.RuntimeError when the Trefoil programmer makes a mistake.
      */
     public static Expression interpretExpression(Expression e, DynamicEnvironment environment) {
-        if (e instanceof Expression.IntegerLiteral) {
-            return e;
-        } else if (e instanceof Expression.VariableReference) {
-            Expression.VariableReference var = (Expression.VariableReference) e;
-            return environment.getVariable(var.getVarname());
-        } else if (e instanceof Expression.Plus) {
-            Expression.Plus p = (Expression.Plus) e;
-            Expression v1 = interpretExpression(p.getLeft(), environment);
-            Expression v2 = interpretExpression(p.getRight(), environment);
-            if (!((v1 instanceof Expression.IntegerLiteral) && (v2 instanceof Expression.IntegerLiteral))){
-                throw new Trefoil2.TrefoilError.RuntimeError("two arguments of plus expression are not all integers");
+        try {
+            switch (engine) {
+                case CLOSURE:
+                    return ClosureCompiler.compile(e).execute(environment);
+                case STACK:
+                    return StackMachine.evaluate(e, environment);
+                case BYTECODE:
+                    return BytecodeVM.evaluate(e, environment);
+                default:
+                    return Parallel.isEnabled() ? Parallel.evaluate(e, environment) : treeWalk(e, environment);
             }
+        } catch (StackOverflowError error) {
+            // Tail calls do not use up the stack, but other deep recursion still can.
+            throw new Trefoil2.TrefoilError.RuntimeError("recursion is too deep (ran out of stack)");
+        }
+    }
 
-            return new Expression.IntegerLiteral(
-                    ((Expression.IntegerLiteral) v1).getData() +
-                            ((Expression.IntegerLiteral) v2).getData()
-            );
-
-        } else if (e instanceof Expression.Minus) {
-            Expression.Minus p = (Expression.Minus) e;
-            Expression v1 = interpretExpression(p.getLeft(), environment);
-            Expression v2 = interpretExpression(p.getRight(), environment);
+    /**
+     * Evaluates e in the given environment by walking its AST.
+     *
+     * Expressions in tail position (the branches of an if, the body of a let, and the body of a called
+     * function) are not evaluated recursively. Instead, the loop goes around again with e and environment
+     * replaced, so that tail calls run in constant Java stack and iterative programs can loop forever.
+     */
+    static Expression treeWalk(Expression e, DynamicEnvironment environment) {
+        while (true) {
+            if (e instanceof Expression.IntegerLiteral || e instanceof Expression.BigIntegerLiteral) {
+                return e;
+            } else if (e instanceof Expression.VariableReference) {
+                Expression.VariableReference var = (Expression.VariableReference) e;
+                if (var.getDepth() >= 0) {
+                    return environment.getLocal(var.getDepth(), var.getSlot());
+                }
+                return environment.getVariable(var.getVarname());
+            } else if (isArithmetic(e)) {
+                try {
+                    return Expression.ofInt(treeWalkLong(e, environment));
+                } catch (Promoted p) {
+                    return p.value;
+                }
+            } else if (e instanceof Expression.Equals) {
+                Expression.Equals p = (Expression.Equals) e;
+                return equals(treeWalk(p.getLeft(), environment), treeWalk(p.getRight(), environment));
+            } else if (e instanceof Expression.ifStatement) {
+                Expression.ifStatement p = (Expression.ifStatement) e;
+                Expression condition = treeWalk(p.getCondition(), environment);
+                e = isFalse(condition) ? p.getFalseStatement() : p.getTrueStatement();
+            } else if (e instanceof Expression.let) {
+                Expression.let p = (Expression.let) e;
+                if (!(p.getTemporalEnvironment() instanceof Expression.letChildren1)) {
+                    throw new Trefoil2.TrefoilError.AbstractSyntaxError("first argument of let expression is not a definition");
+                }
+                Expression.letChildren1 f = (Expression.letChildren1)p.getTemporalEnvironment();
+                String localVariable = f.getLocalVariable();
+                Expression v1 = treeWalk(f.getExpression(), environment);
+                environment = environment.extendFrame(Collections.singletonList(localVariable), new Expression[]{v1});
+                e = p.getExpression();
+            } else if (e instanceof Expression.BooleanLiteral) {
+                return e;
+            } else if (e instanceof Expression.Nil) {
+                return e;
+            } else if (e instanceof Expression.Isnil) {
+                Expression.Isnil p = (Expression.Isnil) e;
+                return isNil(treeWalk(p.getExpression(), environment));
+            } else if (e instanceof Expression.Cons) {
+                Expression.Cons p = (Expression.Cons) e;
+                if (Parallel.isEnabled()) {
+                    Expression[] vals = Parallel.evaluateAll(Arrays.asList(p.getExpression1(), p.getExpression2()), environment);
+                    return new Expression.Cons(vals[0], vals[1]);
+                }
+                Expression val1 = treeWalk(p.getExpression1(), environment);
+                Expression val2 = treeWalk(p.getExpression2(), environment);
+                return new Expression.Cons(val1, val2);
+            } else if (e instanceof Expression.IsCons) {
+                Expression.IsCons p = (Expression.IsCons) e;
+                return isCons(treeWalk(p.getExpression(), environment));
+            } else if (e instanceof Expression.car) {
+                Expression.car p = (Expression.car) e;
+                return car(treeWalk(p.getExpression(), environment));
+            } else if (e instanceof Expression.cdr) {
+                Expression.cdr p = (Expression.cdr) e;
+                return cdr(treeWalk(p.getExpression(), environment));
+            } else if (e instanceof Expression.FunctionReference) {
+                Expression.FunctionReference func = (Expression.FunctionReference) e;
+                DynamicEnvironment.Entry.FunctionEntry entry = lookupFunction(func, environment);
+                DynamicEnvironment defenv = entry.definingEnvironment;
+                Binding.FunctionBinding funcBind = entry.functionBinding;
+                checkArity(func, funcBind);
+                Expression[] vals;
+                if (Parallel.isEnabled()) {
+                    vals = Parallel.evaluateAll(func.getArgs(), environment);
+                } else {
+                    vals = new Expression[func.getArgs().size()];
+                    for (int i = 0; i < vals.length; i++) {
+                        vals[i] = treeWalk(func.getArgs().get(i), environment);
+                    }
+                }
+                Memoizer.Key key = Memoizer.key(entry, vals);
+                if (key != null) {
+                    Expression result = Memoizer.get(key);
+                    if (result != null) {
+                        return result;
+                    }
+                }
+                if (engine == Engine.JVM || engine == Engine.TIERED) {
+                    Expression result = engine == Engine.JVM ? JvmCompiler.invoke(entry, vals)
+                                                             : Tiering.call(entry, vals, environment);
+                    if (result != null) {
+                        if (key != null) {
+                            Memoizer.put(key, result);
+                        }
+                        return result;
+                    }
+                }
+                environment = defenv.extendFrame(funcBind.getArgnames(), vals);
+                if (key != null) {
+                    // not a tail call, since the result has to be cached
+                    Expression result = treeWalk(funcBind.getBody(), environment);
+                    Memoizer.put(key, result);
+                    return result;
+                }
+                e = funcBind.getBody();
+            } else if (e instanceof  Expression.Findmax) {
+                Expression.Findmax p = (Expression.Findmax) e;
 
-            if (!((v1 instanceof Expression.IntegerLiteral) && (v2 instanceof Expression.IntegerLiteral))){
-                throw new Trefoil2.TrefoilError.RuntimeError("two arguments of minus expression are not all integers");
-            }
-            return new Expression.IntegerLiteral(
-                    ((Expression.IntegerLiteral) v1).getData() -
-                            ((Expression.IntegerLiteral) v2).getData()
-            );
-        } else if (e instanceof Expression.Times) {
-            Expression.Times p = (Expression.Times) e;
-            Expression v1 = interpretExpression(p.getLeft(), environment);
-            Expression v2 = interpretExpression(p.getRight(), environment);
-
-            if (!((v1 instanceof Expression.IntegerLiteral) && (v2 instanceof Expression.IntegerLiteral))){
-                throw new Trefoil2.TrefoilError.RuntimeError("two arguments of minus expression are not all integers");
-            }
+                Expression maxVal = maxArgument(treeWalk(p.getArgs().get(0), environment));
 
-            return new Expression.IntegerLiteral(
-                    ((Expression.IntegerLiteral) v1).getData() *
-                            ((Expression.IntegerLiteral) v2).getData()
-            );
-        } else if (e instanceof Expression.Equals) {
-            Expression.Equals p = (Expression.Equals) e;
-            Expression v1 = interpretExpression(p.getLeft(), environment);
-            Expression v2 = interpretExpression(p.getRight(), environment);
-
-            if (!((v1 instanceof Expression.IntegerLiteral) && (v2 instanceof Expression.IntegerLiteral))){
-                throw new Trefoil2.TrefoilError.RuntimeError("two arguments of equal expression are not all integers");
-            }
-            if (((Expression.IntegerLiteral) v1).getData() == ((Expression.IntegerLiteral) v2).getData()) {
-                return new Expression.BooleanLiteral(true);
-            }
-            return new Expression.BooleanLiteral(false);
-        } else if (e instanceof Expression.ifStatement) {
-            Expression.ifStatement p = (Expression.ifStatement) e;
-            Expression condition = interpretExpression(p.getCondition(), environment);
-            if (condition instanceof Expression.BooleanLiteral && !((Expression.BooleanLiteral) condition).isData()) {
-                return interpretExpression(p.getFalseStatement(), environment);
-            } else {
-                return interpretExpression(p.getTrueStatement(), environment);
-            }
-        } else if (e instanceof Expression.let) {
-            Expression.let p = (Expression.let) e;
-            if (!(p.getTemporalEnvironment() instanceof Expression.letChildren1)) {
-                throw new Trefoil2.TrefoilError.AbstractSyntaxError("first argument of let expression is not a definition");
-            }
-            Expression.letChildren1 f = (Expression.letChildren1)p.getTemporalEnvironment();
-            String localVariable = f.getLocalVariable();
-            Expression v1 = interpretExpression(f.getExpression(), environment);
-            DynamicEnvironment newEnvironment = environment.extendVariable(localVariable, v1);
-
-            return interpretExpression(p.getExpression(), newEnvironment);
-        } else if (e instanceof Expression.BooleanLiteral) {
-            return e;
-        } else if (e instanceof Expression.Nil) {
-            return e;
-        } else if (e instanceof Expression.Isnil) {
-            Expression.Isnil p = (Expression.Isnil) e;
-            Expression val = interpretExpression(p.getExpression(), environment);
-            if (val instanceof Expression.Nil) {
-                return new Expression.BooleanLiteral(true);
-            } else {
-                return new Expression.BooleanLiteral(false);
-            }
-        } else if (e instanceof Expression.Cons) {
-            Expression.Cons p = (Expression.Cons) e;
-            Expression val1 = interpretExpression(p.getExpression1(), environment);
-            Expression val2 = interpretExpression(p.getExpression2(), environment);
-            return new Expression.Cons(val1, val2);
-        } else if (e instanceof Expression.IsCons) {
-            Expression.IsCons p = (Expression.IsCons) e;
-            Expression val = interpretExpression(p.getExpression(), environment);
-            if (val instanceof Expression.Cons) {
-                return new Expression.BooleanLiteral(true);
+                for (int i = 1; i < p.getArgs().size(); i++) {
+                    maxVal = max(maxVal, maxArgument(treeWalk(p.getArgs().get(i), environment)));
+                }
+                return maxVal;
             } else {
-                return new Expression.BooleanLiteral(false);
+                // Otherwise it's an expression AST node we don't recognize. Tell the interpreter implementor.
+                throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
             }
-        } else if (e instanceof Expression.car) {
-            Expression.car p = (Expression.car) e;
-            Expression val = interpretExpression(p.getExpression(), environment);
-            if (val instanceof Expression.Cons) {
-                return ((Expression.Cons) val).getExpression1();
-            } else {
-                throw new Trefoil2.TrefoilError.RuntimeError("car argument is not (cons arg1 arg2)");
+        }
+    }
+
+    // The primitive operations on values, shared by all engines so that they agree on semantics and error messages.
+
+    // Integers are IntegerLiterals (a long) when they fit and BigIntegerLiterals otherwise. Arithmetic on two
+    // IntegerLiterals stays on longs, and promotes to BigInteger only when the result overflows. Every engine
+    // detects overflow with Math.addExact, subtractExact, and multiplyExact.
+
+    static Expression plus(Expression v1, Expression v2) {
+        checkIntegers(v1, v2, "plus");
+        if (v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral) {
+            try {
+                return Expression.ofInt(Math.addExact(((Expression.IntegerLiteral) v1).getData(),
+                                                      ((Expression.IntegerLiteral) v2).getData()));
+            } catch (ArithmeticException overflow) {
+                // promoted below
             }
-        } else if (e instanceof Expression.cdr) {
-            Expression.cdr p = (Expression.cdr) e;
-            Expression val = interpretExpression(p.getExpression(), environment);
-            if (val instanceof Expression.Cons) {
-                return ((Expression.Cons) val).getExpression2();
-            } else {
-                throw new Trefoil2.TrefoilError.RuntimeError("cdr argument is not (cons arg1 arg2)");
+        }
+        return Expression.ofBigInteger(toBigInteger(v1).add(toBigInteger(v2)));
+    }
+
+    static Expression minus(Expression v1, Expression v2) {
+        checkIntegers(v1, v2, "minus");
+        if (v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral) {
+            try {
+                return Expression.ofInt(Math.subtractExact(((Expression.IntegerLiteral) v1).getData(),
+                                                           ((Expression.IntegerLiteral) v2).getData()));
+            } catch (ArithmeticException overflow) {
+                // promoted below
             }
-        } else if (e instanceof Expression.FunctionReference) {
-            DynamicEnvironment callenv = environment;
-            Expression.FunctionReference func = (Expression.FunctionReference) e;
-            DynamicEnvironment defenv = environment.getFunction(func.getFunname()).definingEnvironment;
-            Binding.FunctionBinding funcBind = environment.getFunction(func.getFunname()).functionBinding;
-            if (funcBind.getArgnames().size() != func.getArgs().size()) {
-                throw new Trefoil2.TrefoilError.RuntimeError("function " + func.getFunname() + "has incompatible number of parameters");
+        }
+        return Expression.ofBigInteger(toBigInteger(v1).subtract(toBigInteger(v2)));
+    }
+
+    static Expression times(Expression v1, Expression v2) {
+        checkIntegers(v1, v2, "times");
+        if (v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral) {
+            try {
+                return Expression.ofInt(Math.multiplyExact(((Expression.IntegerLiteral) v1).getData(),
+                                                           ((Expression.IntegerLiteral) v2).getData()));
+            } catch (ArithmeticException overflow) {
+                // promoted below
             }
-            List<Expression> vals = new ArrayList<>();
-            for (int i = 0; i < func.getArgs().size(); i++) {
-                vals.add(interpretExpression(func.getArgs().get(i), callenv));
+        }
+        return Expression.ofBigInteger(toBigInteger(v1).multiply(toBigInteger(v2)));
+    }
+
+    static Expression equals(Expression v1, Expression v2) {
+        checkIntegers(v1, v2, "equal");
+        if (v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral) {
+            return Expression.ofBoolean(((Expression.IntegerLiteral) v1).getData() == ((Expression.IntegerLiteral) v2).getData());
+        }
+        return Expression.ofBoolean(toBigInteger(v1).equals(toBigInteger(v2)));
+    }
+
+    static boolean isInteger(Expression v) {
+        return v instanceof Expression.IntegerLiteral || v instanceof Expression.BigIntegerLiteral;
+    }
+
+    static BigInteger toBigInteger(Expression v) {
+        if (v instanceof Expression.IntegerLiteral) {
+            return BigInteger.valueOf(((Expression.IntegerLiteral) v).getData());
+        }
+        return ((Expression.BigIntegerLiteral) v).getData();
+    }
+
+    // Null stands for an operand that was already computed as a primitive long, and so is known to be one.
+    static void checkIntegers(Expression v1, Expression v2, String operator) {
+        if (!((v1 == null || isInteger(v1)) && (v2 == null || isInteger(v2)))) {
+            throw new Trefoil2.TrefoilError.RuntimeError("two arguments of " + operator + " expression are not all integers");
+        }
+    }
+
+    // Plus, Minus, and Times can be evaluated to a primitive long. See treeWalkLong.
+    static boolean isArithmetic(Expression e) {
+        return e instanceof Expression.Plus || e instanceof Expression.Minus || e instanceof Expression.Times;
+    }
+
+    /**
+     * Thrown by the primitive arithmetic paths when a result does not fit in a long. Carries the exact
+     * value of the arithmetic expression that overflowed (or that had a BigInteger operand).
+     *
+     * This is rare, so it is fine for it to allocate. It has no stack trace, since it is caught right away.
+     */
+    static class Promoted extends RuntimeException {
+        final Expression value;
+
+        Promoted(Expression value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    /**
+     * Evaluates an arithmetic expression (see isArithmetic) to a primitive long.
+     *
+     * Arithmetic operands are evaluated the same way, so nested arithmetic like (+ (* a b) (- c 1))
+     * allocates no IntegerLiterals for its intermediate results. Operands are still evaluated left to
+     * right before their types are checked, exactly as in plus(), minus(), and times().
+     *
+     * Throws Promoted with the exact result if it does not fit in a long.
+     */
+    static long treeWalkLong(Expression e, DynamicEnvironment environment) {
+        Expression left, right;
+        if (e instanceof Expression.Plus) {
+            left = ((Expression.Plus) e).getLeft();
+            right = ((Expression.Plus) e).getRight();
+        } else if (e instanceof Expression.Minus) {
+            left = ((Expression.Minus) e).getLeft();
+            right = ((Expression.Minus) e).getRight();
+        } else {
+            left = ((Expression.Times) e).getLeft();
+            right = ((Expression.Times) e).getRight();
+        }
+        if (Parallel.isEnabled() && !(e instanceof Expression.Minus)
+                && left instanceof Expression.FunctionReference && right instanceof Expression.FunctionReference) {
+            Expression[] vals = Parallel.evaluateAll(Arrays.asList(left, right), environment);
+            return arithmeticLong(e, 0, vals[0], 0, vals[1]);
+        }
+
+        long a = 0, b = 0;
+        Expression v1 = null, v2 = null;
+        if (isArithmetic(left)) {
+            try {
+                a = treeWalkLong(left, environment);
+            } catch (Promoted p) {
+                v1 = p.value;
             }
-            callenv = defenv.extendVariables(funcBind.getArgnames(), vals);
-            return interpretExpression(funcBind.getBody(), callenv);
-        } else if (e instanceof  Expression.Findmax) {
-            Expression.Findmax p = (Expression.Findmax) e;
-
-            Expression val = interpretExpression(p.getArgs().get(0));
-            if (!(val instanceof Expression.IntegerLiteral)) {
-                throw new Trefoil2.TrefoilError.RuntimeError("max arguments fail to be compiled as integers");
+        } else {
+            v1 = treeWalk(left, environment);
+        }
+        if (isArithmetic(right)) {
+            try {
+                b = treeWalkLong(right, environment);
+            } catch (Promoted p) {
+                v2 = p.value;
             }
-            int maxVal = ((Expression.IntegerLiteral) val).getData();
+        } else {
+            v2 = treeWalk(right, environment);
+        }
+        return arithmeticLong(e, a, v1, b, v2);
+    }
 
-            for (int i = 1; i < p.getArgs().size(); i++) {
-                val = interpretExpression(p.getArgs().get(i));
-                if (!(val instanceof Expression.IntegerLiteral)) {
-                    throw new Trefoil2.TrefoilError.RuntimeError("max arguments fail to be compiled as integers");
-                }
-                if (maxVal < ((Expression.IntegerLiteral) val).getData()) {
-                    maxVal = ((Expression.IntegerLiteral) val).getData();
+    /**
+     * Applies the arithmetic operator of e to two operands, each given either as a primitive (when the
+     * Expression is null) or as a value. Returns a long, or throws Promoted if the result does not fit.
+     */
+    static long arithmeticLong(Expression e, long a, Expression v1, long b, Expression v2) {
+        checkIntegers(v1, v2, e instanceof Expression.Plus ? "plus" : e instanceof Expression.Minus ? "minus" : "times");
+        if ((v1 == null || v1 instanceof Expression.IntegerLiteral) && (v2 == null || v2 instanceof Expression.IntegerLiteral)) {
+            a = v1 == null ? a : ((Expression.IntegerLiteral) v1).getData();
+            b = v2 == null ? b : ((Expression.IntegerLiteral) v2).getData();
+            try {
+                if (e instanceof Expression.Plus) {
+                    return Math.addExact(a, b);
+                } else if (e instanceof Expression.Minus) {
+                    return Math.subtractExact(a, b);
+                } else {
+                    return Math.multiplyExact(a, b);
                 }
+            } catch (ArithmeticException overflow) {
+                v1 = Expression.ofInt(a);
+                v2 = Expression.ofInt(b);
             }
-            return Expression.ofInt(maxVal);
+        }
+        v1 = v1 == null ? Expression.ofInt(a) : v1;
+        v2 = v2 == null ? Expression.ofInt(b) : v2;
+        Expression result;
+        if (e instanceof Expression.Plus) {
+            result = plus(v1, v2);
+        } else if (e instanceof Expression.Minus) {
+            result = minus(v1, v2);
+        } else {
+            result = times(v1, v2);
+        }
+        if (result instanceof Expression.IntegerLiteral) {
+            return ((Expression.IntegerLiteral) result).getData();
+        }
+        throw new Promoted(result);
+    }
+
+    // Anything other than false counts as true in the condition of an if.
+    static boolean isFalse(Expression condition) {
+        return condition instanceof Expression.BooleanLiteral && !((Expression.BooleanLiteral) condition).isData();
+    }
+
+    static Expression isNil(Expression val) {
+        return Expression.ofBoolean(val instanceof Expression.Nil);
+    }
+
+    static Expression isCons(Expression val) {
+        return Expression.ofBoolean(val instanceof Expression.Cons);
+    }
+
+    static Expression car(Expression val) {
+        if (val instanceof Expression.Cons) {
+            return ((Expression.Cons) val).getExpression1();
+        } else {
+            throw new Trefoil2.TrefoilError.RuntimeError("car argument is not (cons arg1 arg2)");
+        }
+    }
+
+    static Expression cdr(Expression val) {
+        if (val instanceof Expression.Cons) {
+            return ((Expression.Cons) val).getExpression2();
         } else {
-            // Otherwise it's an expression AST node we don't recognize. Tell the interpreter implementor.
-            throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
+            throw new Trefoil2.TrefoilError.RuntimeError("cdr argument is not (cons arg1 arg2)");
+        }
+    }
+
+    // Checks that val is an integer and returns it.
+    static Expression maxArgument(Expression val) {
+        if (!isInteger(val)) {
+            throw new Trefoil2.TrefoilError.RuntimeError("max arguments fail to be compiled as integers");
+        }
+        return val;
+    }
+
+    // Returns the larger of two integers that have already been checked with maxArgument.
+    static Expression max(Expression v1, Expression v2) {
+        if (v1 instanceof Expression.IntegerLiteral && v2 instanceof Expression.IntegerLiteral) {
+            return ((Expression.IntegerLiteral) v1).getData() >= ((Expression.IntegerLiteral) v2).getData() ? v1 : v2;
+        }
+        return toBigInteger(v1).compareTo(toBigInteger(v2)) >= 0 ? v1 : v2;
+    }
+
+    // Finds the function called by func, which must be a top-level function.
+    static DynamicEnvironment.Entry.FunctionEntry lookupFunction(Expression.FunctionReference func, DynamicEnvironment environment) {
+        if (func.getDepth() >= 0) {
+            // the name is bound, but to a local variable
+            throw new Trefoil2.TrefoilError.RuntimeError("function " + func.getFunname() + " is unbounded");
+        }
+        return environment.getFunction(func.getFunname());
+    }
+
+    static void checkArity(Expression.FunctionReference func, Binding.FunctionBinding funcBind) {
+        if (funcBind.getArgnames().size() != func.getArgs().size()) {
+            throw new Trefoil2.TrefoilError.RuntimeError("function " + func.getFunname() + "has incompatible number of parameters");
         }
     }
 
@@ -183,24 +459,42 @@ public class Interpreter {
      * Throws TrefoilError.RuntimeError when the Trefoil programmer makes a mistake.
      */
     public static DynamicEnvironment interpretBinding(Binding b, DynamicEnvironment environment) {
+        return interpretBinding(b, environment, output);
+    }
+
+    /**
+     * Same as interpretBinding(b, environment, Output.of(out)).
+     */
+    public static DynamicEnvironment interpretBinding(Binding b, DynamicEnvironment environment, PrintStream out) {
+        return interpretBinding(b, environment, Output.of(out));
+    }
+
+    /**
+     * Same as interpretBinding(b, environment), but reports the result of the binding to out.
+     */
+    public static DynamicEnvironment interpretBinding(Binding b, DynamicEnvironment environment, Output out) {
+        if (Optimizer.isEnabled()) {
+            b = Optimizer.optimize(b, environment);
+        }
         if (b instanceof Binding.VariableBinding) {
             Binding.VariableBinding vb = (Binding.VariableBinding) b;
             Expression value = interpretExpression(vb.getVardef(), environment);
-            System.out.println(vb.getVarname() + " = " + value);
+            out.variableDefined(vb.getVarname(), value);
             return environment.extendVariable(vb.getVarname(), value);
         } else if (b instanceof Binding.TopLevelExpression) {
             Binding.TopLevelExpression tle = (Binding.TopLevelExpression) b;
-            System.out.println(interpretExpression(tle.getExpression(), environment));
+            out.expressionEvaluated(interpretExpression(tle.getExpression(), environment));
             return environment;
         } else if (b instanceof Binding.FunctionBinding) {
             Binding.FunctionBinding fb = (Binding.FunctionBinding) b;
             DynamicEnvironment newEnvironment = environment.extendFunction(fb.getFunname(), fb);
-            System.out.println(fb.getFunname() + " is defined");
+            out.functionDefined(fb.getFunname());
             return newEnvironment;
         } else if (b instanceof Binding.TestBinding) {
             Binding.TestBinding tb = (Binding.TestBinding) b;
             if(interpretExpression(tb.getExpression(), environment) instanceof Expression.BooleanLiteral
                     && ((Expression.BooleanLiteral) interpretExpression(tb.getExpression(), environment)).isData()) {
+                out.testPassed(tb.getExpression());
                 return environment;
             } else {
                 throw new Trefoil2.TrefoilError.RuntimeError("test fails");
@@ -226,9 +520,29 @@ public class Interpreter {
      * Represents the dynamic environment, which is a mapping from strings to "entries".
      * In the starter code, the string always represents a variable name and an entry is always a VariableEntry.
      * You will extend it to also support function names and FunctionEntries.
+     *
+     * The mapping is stored in a PersistentMap, so copying an environment is O(1) and extending
+     * it is O(log n). A copy shares structure with the environment it came from.
+     *
+     * While evaluating inside a let or a function body, the environment also has a chain of
+     * local frames, which take precedence over the map. See Frame.
      */
     @Data
     public static class DynamicEnvironment {
+        /**
+         * The local variables bound by one let or one function call, plus the frame enclosing them.
+         *
+         * Resolver annotates each reference to a local variable with its depth (how many parent
+         * links to follow) and slot (index into values), so the interpreter can read it directly.
+         * The names are kept so that unresolved references can still be looked up by name.
+         */
+        @Data
+        public static class Frame {
+            private final List<String> names;
+            private final Expression[] values;
+            private final Frame parent;
+        }
+
         public static abstract class Entry {
             @EqualsAndHashCode(callSuper = false)
             @Data
@@ -241,8 +555,37 @@ public class Interpreter {
             public static class FunctionEntry extends Entry {
                 private final Binding.FunctionBinding functionBinding;
 
+                // Excluded because the defining environment usually contains this entry (for recursion),
+                // so comparing or hashing it would never terminate.
                 @ToString.Exclude
+                @EqualsAndHashCode.Exclude
                 private final DynamicEnvironment definingEnvironment;
+
+                // The body compiled by ClosureCompiler, filled in on the first call under Engine.CLOSURE.
+                @ToString.Exclude
+                @EqualsAndHashCode.Exclude
+                private ClosureCompiler.Node compiledBody;
+
+                // The body compiled by BytecodeCompiler, filled in on the first call under Engine.BYTECODE.
+                @ToString.Exclude
+                @EqualsAndHashCode.Exclude
+                private BytecodeCompiler.Code bytecode;
+
+                // The function compiled by JvmCompiler, filled in on the first call under Engine.JVM.
+                @ToString.Exclude
+                @EqualsAndHashCode.Exclude
+                private JvmCompiler.Kernel kernel;
+
+                // How this function is run under Engine.TIERED, and the call counts that decide it (see Tiering).
+                @ToString.Exclude
+                @EqualsAndHashCode.Exclude
+                private Tiering.Tier tier = Tiering.Tier.INTERPRETED;
+                @ToString.Exclude
+                @EqualsAndHashCode.Exclude
+                private int invocations;
+                @ToString.Exclude
+                @EqualsAndHashCode.Exclude
+                private int backEdges;
             }
 
             // Convenience factory methods
@@ -256,21 +599,46 @@ public class Interpreter {
         }
 
         // The backing map of this dynamic environment.
-        private final Map<String, Entry> map;
+        // The map itself is immutable; the put methods replace it with an extended one.
+        @Setter(AccessLevel.NONE)
+        private PersistentMap<Entry> map;
+
+        // The innermost local frame, or null outside of any let or function body.
+        @Setter(AccessLevel.NONE)
+        private Frame frame;
 
         public DynamicEnvironment() {
-            this.map = new HashMap<>();
+            this.map = PersistentMap.empty();
+            this.frame = null;
         }
 
         public DynamicEnvironment(DynamicEnvironment other) {
-            this.map = new HashMap<>(other.getMap());
+            this.map = other.getMap();  // no copy needed, since the map is never mutated
+            this.frame = other.getFrame();  // frames are never mutated either
+        }
+
+        private DynamicEnvironment(PersistentMap<Entry> map, Frame frame) {
+            this.map = map;
+            this.frame = frame;
+        }
+
+        // Functions print as their names, and long lists without recursion (see ValuePrinter).
+        @Override
+        public String toString() {
+            return ValuePrinter.UNLIMITED.toString(this);
         }
 
         private boolean containsVariable(String varname) {
-            return map.containsKey(varname) && map.get(varname) instanceof Entry.VariableEntry;
+            return map.get(varname) instanceof Entry.VariableEntry;
         }
 
         public Expression getVariable(String varname) {
+            for (Frame f = frame; f != null; f = f.parent) {
+                int slot = f.names.lastIndexOf(varname);
+                if (slot >= 0) {
+                    return f.values[slot];
+                }
+            }
             if (!containsVariable(varname)) {
                 throw new Trefoil2.TrefoilError.RuntimeError("the variable " + varname + " is unbounded");
             }
@@ -280,22 +648,59 @@ public class Interpreter {
             return ((Entry.VariableEntry) map.get(varname)).getValue();
         }
 
+        /**
+         * Evaluates value in this environment and binds varname to the result, mutating this.
+         */
         public void putVariable(String varname, Expression value) {
             // Hint: map.put
             // Hint: either call new Entry.VariableEntry or the factory Entry.variable
-            Expression val = Interpreter.interpretExpression(value, this);
-            System.out.println(varname + " = " + val.toString());
-            map.put(varname, Entry.variable(val));
+            bindVariable(varname, Interpreter.interpretExpression(value, this));
+        }
+
+        /**
+         * Binds varname to value, which must already be a value, mutating this.
+         *
+         * Unlike putVariable, does not evaluate anything. This is the path used when the
+         * interpreter extends environments internally (let, function calls, top-level defines).
+         */
+        void bindVariable(String varname, Expression value) {
+            if (frame != null) {
+                // must shadow the locals, so it cannot go in the map
+                frame = new Frame(Collections.singletonList(varname), new Expression[]{value}, frame);
+            } else {
+                map = map.plus(varname, Entry.variable(value));
+            }
+        }
+
+        /**
+         * Returns the local variable at the given lexical address (see Resolver).
+         */
+        Expression getLocal(int depth, int slot) {
+            Frame f = frame;
+            for (int i = 0; i < depth; i++) {
+                f = f.parent;
+            }
+            return f.values[slot];
+        }
+
+        /**
+         * Returns a *new* DynamicEnvironment with a new innermost frame binding names to values.
+         *
+         * Does not change this! This is O(1) and is how let and function calls bind their variables.
+         */
+        DynamicEnvironment extendFrame(List<String> names, Expression[] values) {
+            return new DynamicEnvironment(map, new Frame(names, values, frame));
         }
 
         /**
          * Returns a *new* DynamicEnvironment extended by the binding varname -> value.
+         * value must already be a value; it is not evaluated again.
          *
-         * Does not change this! Creates a copy.
+         * Does not change this! Creates a copy, which is cheap because it shares this's map.
          */
         public DynamicEnvironment extendVariable(String varname, Expression value) {
             DynamicEnvironment newEnv = new DynamicEnvironment(this);  // create a copy
-            newEnv.putVariable(varname, value);  // mutate the copy
+            newEnv.bindVariable(varname, value);  // mutate the copy
             return newEnv;  // return the mutated copy (this remains unchanged!)
         }
 
@@ -313,13 +718,13 @@ public class Interpreter {
             DynamicEnvironment newEnv = new DynamicEnvironment(this);
             assert varnames.size() == values.size();
             for (int i = 0; i < varnames.size(); i++) {
-                newEnv.putVariable(varnames.get(i), values.get(i));
+                newEnv.bindVariable(varnames.get(i), values.get(i));
             }
             return newEnv;
         }
 
         private boolean containsFunction(String funname) {
-            return map.containsKey(funname) && map.get(funname) instanceof Entry.FunctionEntry;
+            return map.get(funname) instanceof Entry.FunctionEntry;
         }
 
         public Entry.FunctionEntry getFunction(String funname) {
@@ -344,7 +749,7 @@ public class Interpreter {
                     }
                 }
             }
-            map.put(funname, Entry.function(functionBinding, this));
+            map = map.plus(funname, Entry.function(functionBinding, this));
         }
 
         public DynamicEnvironment extendFunction(String funname, Binding.FunctionBinding functionBinding) {
@@ -0,0 +1,148 @@
+package trefoil2;
+
+import lombok.Data;
+import lombok.ToString;
+import parser.PSTParser;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs many independent Trefoil programs ("jobs") concurrently, on top of a shared prelude, for
+ * embedding the interpreter in a service.
+ *
+ * The prelude is a program, typically library functions, that is parsed and interpreted once, when
+ * the runner is created. Each job then starts from the environment the prelude left behind. Nothing
+ * is copied to do that: the environment's map is persistent, so a job's definitions extend it
+ * without changing what the prelude or any other job sees.
+ *
+ * Each job runs like Trefoil2.main runs a file: its bindings are interpreted one by one, and an error
+ * is printed and skipped rather than ending the job. What the job prints goes to its Result instead
+ * of System.out, or to an Output of the caller's choosing.
+ *
+ * submit() runs jobs on virtual threads when the JVM has them (Java 21 and up), and on a pool of one
+ * platform thread per processor otherwise.
+ */
+public class JobRunner implements AutoCloseable {
+    /**
+     * What a job printed, and the environment it ended with.
+     */
+    @Data
+    public static class Result {
+        private final String output;
+        @ToString.Exclude
+        private final Interpreter.DynamicEnvironment environment;
+    }
+
+    // Never mutated, and never handed out: jobs get their own DynamicEnvironment over the same map.
+    private final Interpreter.DynamicEnvironment prelude;
+
+    private final ExecutorService executor;
+
+    /**
+     * Interprets prelude, discarding its output, and returns a runner for jobs on top of it.
+     *
+     * Throws the first TrefoilError in the prelude, since a broken library is better found here than in every job.
+     */
+    public JobRunner(String prelude) {
+        Interpreter.DynamicEnvironment env = new Interpreter.DynamicEnvironment();
+        for (Binding b : parse(prelude)) {
+            env = Interpreter.interpretBinding(b, env, Output.DISCARD);
+        }
+        this.prelude = env;
+        this.executor = newExecutor();
+    }
+
+    /**
+     * Returns the environment after the prelude. Changes made to it are not seen by the jobs.
+     */
+    public Interpreter.DynamicEnvironment getPrelude() {
+        return new Interpreter.DynamicEnvironment(prelude);
+    }
+
+    /**
+     * Runs program on the current thread.
+     */
+    public Result run(String program) {
+        Output.Memory out = new Output.Memory();
+        Interpreter.DynamicEnvironment env = run(program, out);
+        return new Result(out.getText(), env);
+    }
+
+    /**
+     * Runs program on the current thread, reporting to out. Returns the environment it ends with.
+     */
+    public Interpreter.DynamicEnvironment run(String program, Output out) {
+        Interpreter.DynamicEnvironment env = new Interpreter.DynamicEnvironment(prelude);
+        PSTParser parser = PSTParser.ofReader(new StringReader(program));
+        while (true) {
+            try {
+                ParenthesizedSymbolTree pstree = parser.parse();
+                if (pstree == null) {
+                    break;
+                }
+                env = Interpreter.interpretBinding(Binding.parsePST(pstree), env, out);
+            } catch (Trefoil2.TrefoilError e) {
+                out.error(e);
+            }
+        }
+        out.flush();
+        return env;
+    }
+
+    /**
+     * Runs program on another thread.
+     */
+    public CompletableFuture<Result> submit(String program) {
+        return CompletableFuture.supplyAsync(() -> run(program), executor);
+    }
+
+    /**
+     * Runs all the programs concurrently, and returns their results in the same order.
+     */
+    public List<Result> runAll(List<String> programs) {
+        List<CompletableFuture<Result>> futures = new ArrayList<>();
+        for (String program : programs) {
+            futures.add(submit(program));
+        }
+        List<Result> results = new ArrayList<>();
+        for (CompletableFuture<Result> future : futures) {
+            results.add(future.join());
+        }
+        return results;
+    }
+
+    /**
+     * Stops accepting jobs. Jobs already submitted still run.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    private static List<Binding> parse(String program) {
+        List<Binding> bindings = new ArrayList<>();
+        PSTParser parser = PSTParser.ofReader(new StringReader(program));
+        for (ParenthesizedSymbolTree pstree = parser.parse(); pstree != null; pstree = parser.parse()) {
+            bindings.add(Binding.parsePST(pstree));
+        }
+        return bindings;
+    }
+
+    // Virtual threads are looked up reflectively, so that this still compiles and runs on Java 17.
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                Thread t = new Thread(r, "trefoil-job");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package trefoil2;
+
+import org.objectweb.asm.ClassTooLargeException;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Compiles numeric Trefoil functions to JVM bytecode, used by Interpreter.Engine.JVM.
+ *
+ * A function can be compiled when its body only does integer arithmetic on its parameters, let-bound
+ * locals, integer literals, and global variables bound to integers, with if, =, max, and calls to
+ * itself. Every value in such a body is an integer, so the generated code works on primitive longs
+ * throughout. Each function becomes a hidden class (see MethodHandles.Lookup.defineHiddenClass) with
+ * a static method
+ *
+ *   static long run(long p0, long p1, ...)
+ *
+ * that HotSpot compiles like any other Java method. A call to itself in tail position becomes a jump
+ * back to the start of run, so tail-recursive loops run in constant stack.
+ *
+ * Anything else falls back to the tree walker:
+ * - A function that cannot be compiled is interpreted, as are calls whose arguments are not all
+ *   IntegerLiterals.
+ * - Arithmetic that overflows a long throws out of the compiled code, and the call is re-evaluated
+ *   by the tree walker, which promotes to BigInteger. This is safe because evaluating an expression
+ *   has no side effects. The function is not compiled any more after that; otherwise each recursive
+ *   call of the re-evaluation would run the kernel again, only to overflow again.
+ * Either way the result is exactly what the tree walker would have computed.
+ */
+public class JvmCompiler {
+    /**
+     * A compiled function. Implemented by the hidden class generated for each function.
+     */
+    public interface Kernel {
+        /**
+         * Runs the function on args, one per parameter. Throws ArithmeticException on overflow.
+         */
+        long call(long[] args);
+    }
+
+    // Stored on FunctionEntries that cannot be compiled, so that compiling them is only tried once.
+    private static final Kernel UNSUPPORTED = args -> {
+        throw new Trefoil2.InternalInterpreterError("called a function that was not compiled");
+    };
+
+    // Thrown while generating code for a body that cannot be compiled. It has no stack trace,
+    // since it is caught right away.
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // The name of every generated class. Hidden classes get a unique suffix when they are defined.
+    private static final String CLASS_NAME = "trefoil2/JvmCompiler$Compiled";
+
+    /**
+     * Calls the function in entry on vals through its compiled code, compiling it on the first call.
+     *
+     * Returns null when the function cannot be compiled, when an argument is not an IntegerLiteral,
+     * or when the result overflowed a long. The caller must then evaluate the call itself. After an
+     * overflow the kernel is dropped, so the function is never run compiled again.
+     */
+    public static Expression invoke(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry, Expression[] vals) {
+        Kernel kernel = kernelOf(entry);
+        if (kernel == null) {
+            return null;
+        }
+
+        long[] args = new long[vals.length];
+        for (int i = 0; i < vals.length; i++) {
+            if (!(vals[i] instanceof Expression.IntegerLiteral)) {
+                return null;
+            }
+            args[i] = ((Expression.IntegerLiteral) vals[i]).getData();
+        }
+        try {
+            return Expression.ofInt(kernel.call(args));
+        } catch (ArithmeticException overflow) {
+            // A function that overflowed once is likely to again, and each attempt is thrown away,
+            // so later calls are interpreted (or closure-compiled) from the start.
+            entry.setKernel(UNSUPPORTED);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the compiled function in entry, compiling it on first use, or null if it cannot be compiled.
+     *
+     * Memoized functions are never run compiled, since their compiled recursive calls would skip the
+     * Memoizer. That is checked on every call, as a function can be memoized after it was compiled.
+     */
+    static Kernel kernelOf(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry) {
+        if (Memoizer.isMemoized(entry)) {
+            return null;
+        }
+        Kernel kernel = entry.getKernel();
+        if (kernel == null) {
+            Kernel compiled = compile(entry);
+            kernel = compiled == null ? UNSUPPORTED : compiled;
+            entry.setKernel(kernel);
+        }
+        return kernel == UNSUPPORTED ? null : kernel;
+    }
+
+    /**
+     * Compiles the function in entry. Returns null if its body cannot be compiled.
+     */
+    static Kernel compile(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry) {
+        byte[] bytes;
+        try {
+            bytes = new JvmCompiler(entry).generate();
+        } catch (Unsupported | MethodTooLargeException | ClassTooLargeException e) {
+            return null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (Kernel) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (Throwable e) {
+            throw new Trefoil2.InternalInterpreterError(e);
+        }
+    }
+
+    private final Interpreter.DynamicEnvironment.Entry.FunctionEntry entry;
+    private final Binding.FunctionBinding binding;
+    private final String runDescriptor;
+
+    private MethodVisitor mv;
+    private final Label start = new Label();  // the start of run, where self tail calls jump to
+    // The JVM local of each slot of each enclosing frame, outermost (the parameters) first.
+    private final List<int[]> scopes = new ArrayList<>();
+    private int nextLocal;
+
+    private JvmCompiler(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry) {
+        this.entry = entry;
+        this.binding = entry.getFunctionBinding();
+        this.runDescriptor = "(" + "J".repeat(binding.getArgnames().size()) + ")J";
+    }
+
+    private byte[] generate() {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(V17, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, CLASS_NAME, null,
+                "java/lang/Object", new String[]{"trefoil2/JvmCompiler$Kernel"});
+
+        mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        // long call(long[] args) { return run(args[0], args[1], ...); }
+        int n = binding.getArgnames().size();
+        mv = cw.visitMethod(ACC_PUBLIC, "call", "([J)J", null, null);
+        mv.visitCode();
+        for (int i = 0; i < n; i++) {
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitLdcInsn(i);
+            mv.visitInsn(LALOAD);
+        }
+        mv.visitMethodInsn(INVOKESTATIC, CLASS_NAME, "run", runDescriptor, false);
+        mv.visitInsn(LRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_STATIC, "run", runDescriptor, null, null);
+        mv.visitCode();
+        int[] params = new int[n];
+        for (int i = 0; i < n; i++) {
+            params[i] = 2 * i;  // a long takes two local slots
+        }
+        scopes.add(params);
+        nextLocal = 2 * n;
+        mv.visitLabel(start);
+        compileLong(binding.getBody(), true);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    // Emits code that leaves the value of e on the stack as a long. In tail position, it instead returns
+    // the value from run (or jumps back to its start, for a self call).
+    private void compileLong(Expression e, boolean tail) {
+        if (e instanceof Expression.IntegerLiteral) {
+            mv.visitLdcInsn(((Expression.IntegerLiteral) e).getData());
+        } else if (e instanceof Expression.VariableReference) {
+            Expression.VariableReference var = (Expression.VariableReference) e;
+            if (var.getDepth() >= 0) {
+                if (var.getDepth() >= scopes.size()) {
+                    throw new Unsupported();
+                }
+                mv.visitVarInsn(LLOAD, scopes.get(scopes.size() - 1 - var.getDepth())[var.getSlot()]);
+            } else {
+                mv.visitLdcInsn(globalInteger(var.getVarname()));
+            }
+        } else if (e instanceof Expression.Plus) {
+            compileArithmetic(((Expression.Plus) e).getLeft(), ((Expression.Plus) e).getRight(), "addExact");
+        } else if (e instanceof Expression.Minus) {
+            compileArithmetic(((Expression.Minus) e).getLeft(), ((Expression.Minus) e).getRight(), "subtractExact");
+        } else if (e instanceof Expression.Times) {
+            compileArithmetic(((Expression.Times) e).getLeft(), ((Expression.Times) e).getRight(), "multiplyExact");
+        } else if (e instanceof Expression.Findmax) {
+            List<Expression> args = ((Expression.Findmax) e).getArgs();
+            compileLong(args.get(0), false);
+            for (int i = 1; i < args.size(); i++) {
+                compileLong(args.get(i), false);
+                mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", "max", "(JJ)J", false);
+            }
+        } else if (e instanceof Expression.ifStatement) {
+            Expression.ifStatement p = (Expression.ifStatement) e;
+            Label falseBranch = new Label();
+            compileCondition(p.getCondition(), falseBranch);
+            compileLong(p.getTrueStatement(), tail);
+            Label end = new Label();
+            if (!tail) {
+                mv.visitJumpInsn(GOTO, end);
+            }
+            mv.visitLabel(falseBranch);
+            compileLong(p.getFalseStatement(), tail);
+            if (!tail) {
+                mv.visitLabel(end);
+            }
+            return;  // each branch already returned in tail position
+        } else if (e instanceof Expression.let) {
+            Expression.let p = (Expression.let) e;
+            if (!(p.getTemporalEnvironment() instanceof Expression.letChildren1)) {
+                throw new Unsupported();  // an error, which the tree walker reports
+            }
+            Expression.letChildren1 f = (Expression.letChildren1) p.getTemporalEnvironment();
+            compileLong(f.getExpression(), false);
+            int local = nextLocal;
+            nextLocal += 2;
+            mv.visitVarInsn(LSTORE, local);
+            scopes.add(new int[]{local});
+            compileLong(p.getExpression(), tail);
+            scopes.remove(scopes.size() - 1);
+            return;
+        } else if (e instanceof Expression.FunctionReference) {
+            Expression.FunctionReference func = (Expression.FunctionReference) e;
+            // Only calls to this very function, which is what the name means in the defining environment.
+            if (func.getDepth() >= 0
+                    || entry.getDefiningEnvironment().getMap().get(func.getFunname()) != entry
+                    || func.getArgs().size() != binding.getArgnames().size()) {
+                throw new Unsupported();
+            }
+            for (Expression arg : func.getArgs()) {
+                compileLong(arg, false);
+            }
+            if (tail) {
+                // all the arguments are evaluated, so the parameters can be overwritten
+                int[] params = scopes.get(0);
+                for (int i = params.length - 1; i >= 0; i--) {
+                    mv.visitVarInsn(LSTORE, params[i]);
+                }
+                mv.visitJumpInsn(GOTO, start);
+                return;
+            }
+            mv.visitMethodInsn(INVOKESTATIC, CLASS_NAME, "run", runDescriptor, false);
+        } else {
+            throw new Unsupported();
+        }
+        if (tail) {
+            mv.visitInsn(LRETURN);
+        }
+    }
+
+    private void compileArithmetic(Expression left, Expression right, String exactMethod) {
+        compileLong(left, false);
+        compileLong(right, false);
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Math", exactMethod, "(JJ)J", false);
+    }
+
+    // Emits code that jumps to ifFalse when the condition e is false, and falls through otherwise.
+    private void compileCondition(Expression e, Label ifFalse) {
+        if (e instanceof Expression.Equals) {
+            Expression.Equals p = (Expression.Equals) e;
+            compileLong(p.getLeft(), false);
+            compileLong(p.getRight(), false);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFNE, ifFalse);
+        } else if (e instanceof Expression.BooleanLiteral) {
+            if (!((Expression.BooleanLiteral) e).isData()) {
+                mv.visitJumpInsn(GOTO, ifFalse);
+            }
+        } else {
+            // an integer is never false, but computing it can still overflow
+            compileLong(e, false);
+            mv.visitInsn(POP2);
+        }
+    }
+
+    // Global variables never change once a function is defined, so one bound to an integer is a constant.
+    private long globalInteger(String varname) {
+        Interpreter.DynamicEnvironment defenv = entry.getDefiningEnvironment();
+        if (defenv.getFrame() != null) {
+            throw new Unsupported();
+        }
+        Interpreter.DynamicEnvironment.Entry global = defenv.getMap().get(varname);
+        if (!(global instanceof Interpreter.DynamicEnvironment.Entry.VariableEntry)) {
+            throw new Unsupported();
+        }
+        Expression value = ((Interpreter.DynamicEnvironment.Entry.VariableEntry) global).getValue();
+        if (!(value instanceof Expression.IntegerLiteral)) {
+            throw new Unsupported();
+        }
+        return ((Expression.IntegerLiteral) value).getData();
+    }
+}
@@ -0,0 +1,166 @@
+package trefoil2;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the results of function calls, when enabled for all functions (see setEnabled) or for some
+ * of them (see setMemoized).
+ *
+ * Trefoil has no mutation, and every value is an integer, a boolean, or a finite list of values, so a
+ * call of a function with the same arguments always computes the same result, or raises the same
+ * error. A memoized call is looked up by the function's FunctionEntry and the values of its arguments,
+ * and its body only runs if the cache has no result for them. Only results are cached; a call that
+ * raises an error raises it again the next time. Redefining a function creates a new FunctionEntry,
+ * so the results of the old definition are never used for the new one.
+ *
+ * The cache holds at most getCapacity() results, and evicts the least recently used one to make room.
+ * It is shared by all threads, and synchronized.
+ *
+ * The tree walker and closure-compiled code check the cache on every call of a memoized function.
+ * JVM-compiled code calls itself directly, so Interpreter.Engine.JVM and TIERED never compile a
+ * memoized function to bytecode (TIERED closure-compiles it instead), and the Inliner never inlines one.
+ * The STACK and BYTECODE engines do not memoize at all. Since the result has to be stored when the
+ * body returns, a memoized call is never a tail call: a deeply tail-recursive function should not be
+ * memoized.
+ */
+public class Memoizer {
+    private static boolean enabled = Boolean.getBoolean("trefoil.memoize");
+
+    // The functions memoized by name, in addition to all of them when enabled.
+    private static final Set<String> functions = ConcurrentHashMap.newKeySet();
+
+    private static int capacity = Integer.getInteger("trefoil.memoSize", 10000);
+
+    private static final LinkedHashMap<Key, Expression> cache = new LinkedHashMap<Key, Expression>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Expression> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    private static long hits = 0;
+    private static long misses = 0;
+
+    // A call: the function called, and the values of its arguments.
+    static final class Key {
+        private final Interpreter.DynamicEnvironment.Entry.FunctionEntry entry;
+        private final Expression[] vals;
+        private final int hash;
+
+        private Key(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry, Expression[] vals) {
+            this.entry = entry;
+            this.vals = vals;
+            this.hash = 31 * System.identityHashCode(entry) + Arrays.hashCode(vals);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && entry == k.entry && Arrays.equals(vals, k.vals);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Memoizes all functions if b is true. Otherwise, only the ones passed to setMemoized.
+     */
+    public static void setEnabled(boolean b) {
+        enabled = b;
+    }
+
+    /**
+     * Memoizes the function named funname if b is true, or stops memoizing it.
+     */
+    public static void setMemoized(String funname, boolean b) {
+        if (b) {
+            functions.add(funname);
+        } else {
+            functions.remove(funname);
+        }
+    }
+
+    public static synchronized int getCapacity() {
+        return capacity;
+    }
+
+    public static synchronized void setCapacity(int results) {
+        if (results < 1) {
+            throw new IllegalArgumentException("memo capacity must be positive");
+        }
+        capacity = results;
+        while (cache.size() > capacity) {
+            cache.remove(cache.keySet().iterator().next());
+        }
+    }
+
+    public static synchronized long getHits() {
+        return hits;
+    }
+
+    public static synchronized long getMisses() {
+        return misses;
+    }
+
+    public static synchronized int size() {
+        return cache.size();
+    }
+
+    /**
+     * Empties the cache and resets the hit and miss counters.
+     */
+    public static synchronized void clear() {
+        cache.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    /**
+     * Returns whether calls of the function in entry are memoized.
+     */
+    static boolean isMemoized(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry) {
+        return enabled || (!functions.isEmpty() && functions.contains(entry.getFunctionBinding().getFunname()));
+    }
+
+    /**
+     * Returns the key to cache a call of the function in entry with arguments vals under, or null if
+     * the function is not memoized.
+     */
+    static Key key(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry, Expression[] vals) {
+        if (!isMemoized(entry)) {
+            return null;
+        }
+        return new Key(entry, vals);
+    }
+
+    /**
+     * Returns the cached result of the call, or null if there is none.
+     */
+    static synchronized Expression get(Key key) {
+        Expression result = cache.get(key);
+        if (result != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return result;
+    }
+
+    static synchronized void put(Key key, Expression result) {
+        cache.put(key, result);
+    }
+}
@@ -0,0 +1,277 @@
+package trefoil2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simplifies expression ASTs before they are interpreted, when enabled (see setEnabled).
+ *
+ * The optimizer does the work that does not depend on the run-time environment once, instead of on
+ * every evaluation:
+ * - arithmetic, =, and max on integer literals are folded to their result,
+ * - an if whose condition is a value is replaced by the branch it would take,
+ * - (car (cons a b)) and (cdr (cons a b)) are replaced by a or b, when the other part is a value,
+ * - nil? and cons? of a value are folded to a boolean, and
+ * - a let that binds a value is removed, with the value substituted for its variable.
+ *
+ * The optimized expression evaluates to the same value and raises the same errors as the original.
+ * So nothing is folded unless it is certain to succeed: (+ 1 true) is left alone, to raise its error
+ * at run time. Only subexpressions that are values are ever dropped, since evaluating anything else
+ * might raise an error (or not terminate).
+ *
+ * Binding.parsePST runs the optimizer between Expression.parsePST and Resolver, which computes the
+ * lexical addresses of the optimized AST. Expression.parseString does not optimize, since tests use
+ * it to check the parser itself.
+ *
+ * In addition, Interpreter.interpretBinding runs optimize(Binding, ...) on each binding, which inlines
+ * calls of small functions (see Inliner) and then folds what the inlining exposed.
+ */
+public class Optimizer {
+    private static boolean enabled = Boolean.getBoolean("trefoil.optimize");
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean b) {
+        enabled = b;
+    }
+
+    // The let-bound variables in scope, innermost first. value is the value a variable was bound to,
+    // or null if it was bound to something else and so must not be substituted.
+    private static class Scope {
+        private final String name;
+        private final Expression value;
+        private final Scope parent;
+
+        private Scope(String name, Expression value, Scope parent) {
+            this.name = name;
+            this.value = value;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * Returns an optimized copy of e. Never changes e.
+     *
+     * The result has no lexical addresses, so it must be resolved before it is interpreted.
+     */
+    public static Expression optimize(Expression e) {
+        return optimize(e, null);
+    }
+
+    /**
+     * Returns b with the calls of small functions in it inlined and optimized, for interpreting b in env.
+     * Returns b itself if there is nothing to inline.
+     *
+     * The result is resolved. A function keeps its argnames list, so Tiering still recognizes its back edges.
+     */
+    public static Binding optimize(Binding b, Interpreter.DynamicEnvironment env) {
+        if (b instanceof Binding.VariableBinding) {
+            Binding.VariableBinding vb = (Binding.VariableBinding) b;
+            Expression e = Inliner.inline(vb.getVardef(), env, null, null);
+            return e == vb.getVardef() ? b : new Binding.VariableBinding(vb.getVarname(), Resolver.resolve(optimize(e)));
+        } else if (b instanceof Binding.TopLevelExpression) {
+            Binding.TopLevelExpression tle = (Binding.TopLevelExpression) b;
+            Expression e = Inliner.inline(tle.getExpression(), env, null, null);
+            return e == tle.getExpression() ? b : new Binding.TopLevelExpression(Resolver.resolve(optimize(e)));
+        } else if (b instanceof Binding.FunctionBinding) {
+            Binding.FunctionBinding fb = (Binding.FunctionBinding) b;
+            Expression e = Inliner.inline(fb.getBody(), env, fb.getFunname(), fb.getArgnames());
+            return e == fb.getBody() ? b : new Binding.FunctionBinding(fb.getFunname(), fb.getArgnames(),
+                    Resolver.resolve(optimize(e), fb.getArgnames()));
+        } else if (b instanceof Binding.TestBinding) {
+            Binding.TestBinding tb = (Binding.TestBinding) b;
+            Expression e = Inliner.inline(tb.getExpression(), env, null, null);
+            return e == tb.getExpression() ? b : new Binding.TestBinding(Resolver.resolve(optimize(e)));
+        } else {
+            throw new Trefoil2.InternalInterpreterError("\"impossible\" binding AST node " + b.getClass());
+        }
+    }
+
+    private static Expression optimize(Expression e, Scope scope) {
+        if (e instanceof Expression.IntegerLiteral
+                || e instanceof Expression.BigIntegerLiteral
+                || e instanceof Expression.BooleanLiteral
+                || e instanceof Expression.Nil) {
+            return e;
+        } else if (e instanceof Expression.VariableReference) {
+            String varname = ((Expression.VariableReference) e).getVarname();
+            for (Scope s = scope; s != null; s = s.parent) {
+                if (s.name.equals(varname)) {
+                    return s.value != null ? s.value : new Expression.VariableReference(varname);
+                }
+            }
+            return new Expression.VariableReference(varname);
+        } else if (e instanceof Expression.Plus) {
+            Expression.Plus p = (Expression.Plus) e;
+            Expression left = optimize(p.getLeft(), scope);
+            Expression right = optimize(p.getRight(), scope);
+            if (Interpreter.isInteger(left) && Interpreter.isInteger(right)) {
+                return Interpreter.plus(left, right);
+            }
+            return new Expression.Plus(left, right);
+        } else if (e instanceof Expression.Minus) {
+            Expression.Minus p = (Expression.Minus) e;
+            Expression left = optimize(p.getLeft(), scope);
+            Expression right = optimize(p.getRight(), scope);
+            if (Interpreter.isInteger(left) && Interpreter.isInteger(right)) {
+                return Interpreter.minus(left, right);
+            }
+            return new Expression.Minus(left, right);
+        } else if (e instanceof Expression.Times) {
+            Expression.Times p = (Expression.Times) e;
+            Expression left = optimize(p.getLeft(), scope);
+            Expression right = optimize(p.getRight(), scope);
+            if (Interpreter.isInteger(left) && Interpreter.isInteger(right)) {
+                return Interpreter.times(left, right);
+            }
+            return new Expression.Times(left, right);
+        } else if (e instanceof Expression.Equals) {
+            Expression.Equals p = (Expression.Equals) e;
+            Expression left = optimize(p.getLeft(), scope);
+            Expression right = optimize(p.getRight(), scope);
+            if (Interpreter.isInteger(left) && Interpreter.isInteger(right)) {
+                return Interpreter.equals(left, right);
+            }
+            return new Expression.Equals(left, right);
+        } else if (e instanceof Expression.ifStatement) {
+            Expression.ifStatement p = (Expression.ifStatement) e;
+            Expression condition = optimize(p.getCondition(), scope);
+            if (isValue(condition)) {
+                return optimize(Interpreter.isFalse(condition) ? p.getFalseStatement() : p.getTrueStatement(), scope);
+            }
+            return new Expression.ifStatement(condition,
+                    optimize(p.getTrueStatement(), scope),
+                    optimize(p.getFalseStatement(), scope));
+        } else if (e instanceof Expression.let) {
+            Expression.let p = (Expression.let) e;
+            if (!(p.getTemporalEnvironment() instanceof Expression.letChildren1)) {
+                // leave it to the interpreter to report
+                return e;
+            }
+            Expression.letChildren1 f = (Expression.letChildren1) p.getTemporalEnvironment();
+            String localVariable = f.getLocalVariable();
+            Expression value = optimize(f.getExpression(), scope);
+            // Calling the variable as a function is an error that the let must stay around to report.
+            if (isValue(value) && !calls(p.getExpression(), localVariable)) {
+                return optimize(p.getExpression(), new Scope(localVariable, value, scope));
+            }
+            return new Expression.let(
+                    new Expression.letChildren1(localVariable, value),
+                    optimize(p.getExpression(), new Scope(localVariable, null, scope)));
+        } else if (e instanceof Expression.Isnil) {
+            Expression val = optimize(((Expression.Isnil) e).getExpression(), scope);
+            if (isValue(val)) {
+                return Interpreter.isNil(val);
+            }
+            return new Expression.Isnil(val);
+        } else if (e instanceof Expression.Cons) {
+            Expression.Cons p = (Expression.Cons) e;
+            return new Expression.Cons(optimize(p.getExpression1(), scope), optimize(p.getExpression2(), scope));
+        } else if (e instanceof Expression.IsCons) {
+            Expression val = optimize(((Expression.IsCons) e).getExpression(), scope);
+            if (isValue(val)) {
+                return Interpreter.isCons(val);
+            }
+            return new Expression.IsCons(val);
+        } else if (e instanceof Expression.car) {
+            Expression val = optimize(((Expression.car) e).getExpression(), scope);
+            if (val instanceof Expression.Cons && isValue(((Expression.Cons) val).getExpression2())) {
+                return ((Expression.Cons) val).getExpression1();
+            }
+            return new Expression.car(val);
+        } else if (e instanceof Expression.cdr) {
+            Expression val = optimize(((Expression.cdr) e).getExpression(), scope);
+            if (val instanceof Expression.Cons && isValue(((Expression.Cons) val).getExpression1())) {
+                return ((Expression.Cons) val).getExpression2();
+            }
+            return new Expression.cdr(val);
+        } else if (e instanceof Expression.FunctionReference) {
+            Expression.FunctionReference func = (Expression.FunctionReference) e;
+            return new Expression.FunctionReference(func.getFunname(), optimizeAll(func.getArgs(), scope));
+        } else if (e instanceof Expression.Findmax) {
+            List<Expression> args = optimizeAll(((Expression.Findmax) e).getArgs(), scope);
+            if (args.stream().allMatch(Interpreter::isInteger)) {
+                Expression maxVal = args.get(0);
+                for (int i = 1; i < args.size(); i++) {
+                    maxVal = Interpreter.max(maxVal, args.get(i));
+                }
+                return maxVal;
+            }
+            return new Expression.Findmax(args);
+        } else {
+            throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
+        }
+    }
+
+    private static List<Expression> optimizeAll(List<Expression> es, Scope scope) {
+        List<Expression> optimized = new ArrayList<>(es.size());
+        for (Expression e : es) {
+            optimized.add(optimize(e, scope));
+        }
+        return optimized;
+    }
+
+    // Whether e is a value: evaluating it gives e itself, and cannot fail.
+    static boolean isValue(Expression e) {
+        while (e instanceof Expression.Cons) {
+            if (!isValue(((Expression.Cons) e).getExpression1())) {
+                return false;
+            }
+            e = ((Expression.Cons) e).getExpression2();
+        }
+        return e instanceof Expression.IntegerLiteral
+                || e instanceof Expression.BigIntegerLiteral
+                || e instanceof Expression.BooleanLiteral
+                || e instanceof Expression.Nil;
+    }
+
+    // Whether e calls a function named funname anywhere, even where funname is shadowed. Conservative.
+    private static boolean calls(Expression e, String funname) {
+        if (e instanceof Expression.FunctionReference) {
+            Expression.FunctionReference func = (Expression.FunctionReference) e;
+            return func.getFunname().equals(funname) || callsAny(func.getArgs(), funname);
+        } else if (e instanceof Expression.Plus) {
+            return calls(((Expression.Plus) e).getLeft(), funname) || calls(((Expression.Plus) e).getRight(), funname);
+        } else if (e instanceof Expression.Minus) {
+            return calls(((Expression.Minus) e).getLeft(), funname) || calls(((Expression.Minus) e).getRight(), funname);
+        } else if (e instanceof Expression.Times) {
+            return calls(((Expression.Times) e).getLeft(), funname) || calls(((Expression.Times) e).getRight(), funname);
+        } else if (e instanceof Expression.Equals) {
+            return calls(((Expression.Equals) e).getLeft(), funname) || calls(((Expression.Equals) e).getRight(), funname);
+        } else if (e instanceof Expression.ifStatement) {
+            Expression.ifStatement p = (Expression.ifStatement) e;
+            return calls(p.getCondition(), funname) || calls(p.getTrueStatement(), funname)
+                    || calls(p.getFalseStatement(), funname);
+        } else if (e instanceof Expression.let) {
+            Expression.let p = (Expression.let) e;
+            return calls(p.getTemporalEnvironment(), funname) || calls(p.getExpression(), funname);
+        } else if (e instanceof Expression.letChildren1) {
+            return calls(((Expression.letChildren1) e).getExpression(), funname);
+        } else if (e instanceof Expression.Isnil) {
+            return calls(((Expression.Isnil) e).getExpression(), funname);
+        } else if (e instanceof Expression.Cons) {
+            Expression.Cons p = (Expression.Cons) e;
+            return calls(p.getExpression1(), funname) || calls(p.getExpression2(), funname);
+        } else if (e instanceof Expression.IsCons) {
+            return calls(((Expression.IsCons) e).getExpression(), funname);
+        } else if (e instanceof Expression.car) {
+            return calls(((Expression.car) e).getExpression(), funname);
+        } else if (e instanceof Expression.cdr) {
+            return calls(((Expression.cdr) e).getExpression(), funname);
+        } else if (e instanceof Expression.Findmax) {
+            return callsAny(((Expression.Findmax) e).getArgs(), funname);
+        }
+        return false;
+    }
+
+    private static boolean callsAny(List<Expression> es, String funname) {
+        for (Expression e : es) {
+            if (calls(e, funname)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
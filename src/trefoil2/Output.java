@@ -0,0 +1,282 @@
+package trefoil2;
+
+import lombok.Data;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where the interpreter reports what each top-level binding did (see Interpreter.interpretBinding).
+ *
+ * Each binding produces one event: a variable was defined, a function was defined, a top-level
+ * expression was evaluated, or a test passed. Trefoil2.main also reports the errors it skips, and
+ * the environment the program ends with.
+ *
+ * Implementations:
+ * - Text formats the events as lines of text, the way the command line shows them, and writes them
+ *   to a Writer, buffered unless told to flush each line. Its subclass Memory keeps them in memory.
+ * - of(PrintStream) writes the lines to a PrintStream.
+ * - DISCARD drops everything, for benchmarks.
+ * - Events keeps the events themselves, for programs embedding the interpreter.
+ *
+ * An Output is used by one thread at a time; concurrent programs each need their own.
+ */
+public interface Output {
+    void variableDefined(String varname, Expression value);
+
+    void functionDefined(String funname);
+
+    void expressionEvaluated(Expression value);
+
+    void testPassed(Expression test);
+
+    void error(Trefoil2.TrefoilError error);
+
+    void message(String text);
+
+    /**
+     * Reports the environment a program ended with.
+     */
+    void environment(Interpreter.DynamicEnvironment env);
+
+    /**
+     * Writes out anything buffered.
+     */
+    default void flush() {
+    }
+
+    Output DISCARD = new Output() {
+        @Override
+        public void variableDefined(String varname, Expression value) {
+        }
+
+        @Override
+        public void functionDefined(String funname) {
+        }
+
+        @Override
+        public void expressionEvaluated(Expression value) {
+        }
+
+        @Override
+        public void testPassed(Expression test) {
+        }
+
+        @Override
+        public void error(Trefoil2.TrefoilError error) {
+        }
+
+        @Override
+        public void message(String text) {
+        }
+
+        @Override
+        public void environment(Interpreter.DynamicEnvironment env) {
+        }
+    };
+
+    /**
+     * Returns an output that prints lines to out, flushing it after each.
+     */
+    static Output of(PrintStream out) {
+        return new Text(new PrintWriter(out), true);
+    }
+
+    /**
+     * Writes events as lines of text to a Writer, the way the command line shows them. Passing tests print
+     * nothing. Values are streamed to the Writer with the default ValuePrinter, so printing a long list
+     * never builds it up as a String.
+     *
+     * Unless autoFlush is set, nothing is written out until the Writer's buffer fills or flush() is called,
+     * so wrap unbuffered Writers in a BufferedWriter.
+     */
+    class Text implements Output {
+        private final Writer writer;
+        private final boolean autoFlush;
+        private final String lineSeparator;
+
+        public Text(Writer writer, boolean autoFlush) {
+            this(writer, autoFlush, System.lineSeparator());
+        }
+
+        private Text(Writer writer, boolean autoFlush, String lineSeparator) {
+            this.writer = writer;
+            this.autoFlush = autoFlush;
+            this.lineSeparator = lineSeparator;
+        }
+
+        @Override
+        public void variableDefined(String varname, Expression value) {
+            try {
+                writer.write(varname);
+                writer.write(" = ");
+                ValuePrinter.getDefault().print(value, writer);
+                endLine();
+            } catch (IOException e) {
+                throw new Trefoil2.InternalInterpreterError(e);
+            }
+        }
+
+        @Override
+        public void functionDefined(String funname) {
+            println(funname + " is defined");
+        }
+
+        @Override
+        public void expressionEvaluated(Expression value) {
+            try {
+                ValuePrinter.getDefault().print(value, writer);
+                endLine();
+            } catch (IOException e) {
+                throw new Trefoil2.InternalInterpreterError(e);
+            }
+        }
+
+        @Override
+        public void testPassed(Expression test) {
+        }
+
+        @Override
+        public void error(Trefoil2.TrefoilError error) {
+            println(error.getMessage());
+        }
+
+        @Override
+        public void message(String text) {
+            println(text);
+        }
+
+        @Override
+        public void environment(Interpreter.DynamicEnvironment env) {
+            try {
+                writer.write("final environment:");
+                endLine();
+                ValuePrinter.getDefault().print(env, writer);
+                endLine();
+            } catch (IOException e) {
+                throw new Trefoil2.InternalInterpreterError(e);
+            }
+        }
+
+        private void println(String line) {
+            try {
+                writer.write(line);
+                endLine();
+            } catch (IOException e) {
+                throw new Trefoil2.InternalInterpreterError(e);
+            }
+        }
+
+        private void endLine() throws IOException {
+            writer.write(lineSeparator);
+            if (autoFlush) {
+                writer.flush();
+            }
+        }
+
+        @Override
+        public void flush() {
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new Trefoil2.InternalInterpreterError(e);
+            }
+        }
+    }
+
+    /**
+     * Keeps the lines in memory. Lines end in "\n" on every platform.
+     */
+    class Memory extends Text {
+        private final StringWriter text;
+
+        public Memory() {
+            this(new StringWriter());
+        }
+
+        private Memory(StringWriter text) {
+            super(text, false, "\n");
+            this.text = text;
+        }
+
+        public String getText() {
+            return text.toString();
+        }
+    }
+
+    /**
+     * Keeps the events themselves, in order.
+     */
+    class Events implements Output {
+        public enum Kind {
+            VARIABLE_DEFINED, FUNCTION_DEFINED, EXPRESSION_EVALUATED, TEST_PASSED, ERROR, MESSAGE
+        }
+
+        /**
+         * One event. name is the variable or function defined, value the variable's value, the
+         * expression's value, or the test that passed, and text the error or other message. Fields an
+         * event does not have are null.
+         */
+        @Data
+        public static class Event {
+            private final Kind kind;
+            private final String name;
+            private final Expression value;
+            private final String text;
+        }
+
+        private final List<Event> events = new ArrayList<>();
+        private Interpreter.DynamicEnvironment environment;
+
+        public List<Event> getEvents() {
+            return events;
+        }
+
+        /**
+         * Returns the environment reported last, or null if there was none.
+         */
+        public Interpreter.DynamicEnvironment getEnvironment() {
+            return environment;
+        }
+
+        @Override
+        public void variableDefined(String varname, Expression value) {
+            events.add(new Event(Kind.VARIABLE_DEFINED, varname, value, null));
+        }
+
+        @Override
+        public void functionDefined(String funname) {
+            events.add(new Event(Kind.FUNCTION_DEFINED, funname, null, null));
+        }
+
+        @Override
+        public void expressionEvaluated(Expression value) {
+            events.add(new Event(Kind.EXPRESSION_EVALUATED, null, value, null));
+        }
+
+        @Override
+        public void testPassed(Expression test) {
+            events.add(new Event(Kind.TEST_PASSED, null, test, null));
+        }
+
+        @Override
+        public void error(Trefoil2.TrefoilError error) {
+            events.add(new Event(Kind.ERROR, null, null, error.getMessage()));
+        }
+
+        @Override
+        public void message(String text) {
+            events.add(new Event(Kind.MESSAGE, null, null, text));
+        }
+
+        @Override
+        public void environment(Interpreter.DynamicEnvironment env) {
+            environment = env;
+        }
+    }
+}
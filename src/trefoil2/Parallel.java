@@ -0,0 +1,177 @@
+package trefoil2;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Evaluates independent subexpressions in parallel, when enabled (see setEnabled).
+ *
+ * Trefoil has no side effects, so the arguments of a function call, and the operands of +, *, and cons,
+ * can be evaluated in any order, or at the same time. The tree walker hands them to evaluateAll, which
+ * forks some of them as tasks on a ForkJoinPool, evaluates the rest itself, and then joins the tasks.
+ *
+ * Forking only pays off for operands that do a lot of work, so evaluateAll forks an operand only when
+ * - it is a function call, and at least one of its siblings is too, since everything else is cheap and
+ *   a lone call has nothing to overlap with (think of (cons n (range (- n 1)))), and
+ * - the current worker has few tasks queued that nobody has stolen yet (at most MAX_SURPLUS). Once the
+ *   pool is busy, forking more only adds overhead, so the recursion continues sequentially.
+ * Nothing is forked on a pool of one worker (the default on a single-processor machine); set the
+ * trefoil.parallelism property, or call setParallelism, to change the number of workers.
+ *
+ * Errors are reported as if the operands were evaluated left to right: the leftmost operand that
+ * raises an error decides which error is raised, and operands to its right are cancelled if they have
+ * not started yet. An operand that has already started cannot be stopped: it keeps running on its
+ * worker after the error is raised, and its result is dropped. One that never terminates, like a call
+ * of a function that loops forever, keeps that worker busy for good, and the pool has one worker
+ * fewer from then on.
+ *
+ * Only the tree walker (Interpreter.Engine.TREE, and the interpreted parts of JVM and TIERED) runs in parallel.
+ * Worker threads have smaller stacks than the main thread, so deep non-tail recursion runs out of
+ * stack sooner.
+ */
+public class Parallel {
+    private static boolean enabled = Boolean.getBoolean("trefoil.parallel");
+
+    // The number of unstolen tasks a worker may have queued and still fork more.
+    static final int MAX_SURPLUS = 3;
+
+    private static int parallelism = Integer.getInteger("trefoil.parallelism", Runtime.getRuntime().availableProcessors());
+
+    // Created on first use, and replaced when the parallelism changes. Guarded by Parallel.class.
+    private static ForkJoinPool pool;
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean b) {
+        enabled = b;
+    }
+
+    public static synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Sets the number of worker threads. Evaluations already running finish on the old workers.
+     */
+    public static synchronized void setParallelism(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        parallelism = workers;
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+        }
+        return pool;
+    }
+
+    // Evaluates an expression with the tree walker, keeping the error it raises instead of throwing it,
+    // so that the joining thread can rethrow it as is.
+    private static class Evaluation extends RecursiveAction {
+        private final Expression e;
+        private final Interpreter.DynamicEnvironment environment;
+        private Expression value;
+        private Throwable error;
+
+        Evaluation(Expression e, Interpreter.DynamicEnvironment environment) {
+            this.e = e;
+            this.environment = environment;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                value = Interpreter.treeWalk(e, environment);
+            } catch (RuntimeException | Error t) {
+                error = t;
+            }
+        }
+
+        // Returns the value, or throws the error.
+        Expression value() {
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error != null) {
+                throw (Error) error;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Evaluates e with the tree walker, on the pool so that its subexpressions can be forked.
+     */
+    static Expression evaluate(Expression e, Interpreter.DynamicEnvironment environment) {
+        if (ForkJoinTask.inForkJoinPool()) {
+            return Interpreter.treeWalk(e, environment);
+        }
+        Evaluation evaluation = new Evaluation(e, environment);
+        pool().invoke(evaluation);
+        return evaluation.value();
+    }
+
+    /**
+     * Evaluates es in environment, and returns their values in order.
+     */
+    static Expression[] evaluateAll(List<Expression> es, Interpreter.DynamicEnvironment environment) {
+        Expression[] vals = new Expression[es.size()];
+        Evaluation[] forks = null;
+        if (worthForking(es)) {
+            // The first operand is always evaluated here, while the others run.
+            for (int i = 1; i < vals.length; i++) {
+                if (es.get(i) instanceof Expression.FunctionReference
+                        && ForkJoinTask.getSurplusQueuedTaskCount() <= MAX_SURPLUS) {
+                    if (forks == null) {
+                        forks = new Evaluation[vals.length];
+                    }
+                    forks[i] = new Evaluation(es.get(i), environment);
+                    forks[i].fork();
+                }
+            }
+        }
+        for (int i = 0; i < vals.length; i++) {
+            try {
+                if (forks != null && forks[i] != null) {
+                    forks[i].join();
+                    vals[i] = forks[i].value();
+                } else {
+                    vals[i] = Interpreter.treeWalk(es.get(i), environment);
+                }
+            } catch (RuntimeException | Error t) {
+                if (forks != null) {
+                    for (int j = i + 1; j < vals.length; j++) {
+                        if (forks[j] != null) {
+                            forks[j].cancel(false);
+                        }
+                    }
+                }
+                throw t;
+            }
+        }
+        return vals;
+    }
+
+    // Whether es has two calls to overlap, and we are on a pool with more than one worker to fork them.
+    private static boolean worthForking(List<Expression> es) {
+        if (!ForkJoinTask.inForkJoinPool() || ForkJoinTask.getPool().getParallelism() < 2) {
+            return false;
+        }
+        int calls = 0;
+        for (Expression e : es) {
+            if (e instanceof Expression.FunctionReference) {
+                calls++;
+            }
+        }
+        return calls >= 2;
+    }
+}
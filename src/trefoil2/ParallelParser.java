@@ -0,0 +1,106 @@
+package trefoil2;
+
+import parser.PSTParser;
+import parser.TopLevelForms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parses the top-level bindings of a whole program in parallel.
+ *
+ * The text is first split into its top-level forms (see parser.TopLevelForms), which only needs to
+ * track paren depth and skip comments. Each form is then parsed to a PST and a Binding on its own,
+ * on a ForkJoinPool. The results come back in source order, so interpreting them one after another
+ * behaves exactly like parsing and interpreting the program sequentially.
+ */
+public class ParallelParser {
+    // Forms per task. Forms are usually small, so parse a batch of them per task.
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * The outcome of parsing one top-level form: either a Binding or the error parsing it threw.
+     */
+    public static class Result {
+        private final Binding binding;
+        private final RuntimeException error;
+
+        private Result(Binding binding, RuntimeException error) {
+            this.binding = binding;
+            this.error = error;
+        }
+
+        static Result of(Binding binding) {
+            return new Result(binding, null);
+        }
+
+        /**
+         * Returns the binding, or throws the error that parsing the form threw.
+         */
+        public Binding get() {
+            if (error != null) {
+                throw error;
+            }
+            return binding;
+        }
+    }
+
+    /**
+     * Parses every top-level form of text, in parallel on the common ForkJoinPool.
+     * Returns one Result per form, in source order.
+     */
+    public static List<Result> parse(char[] text) {
+        return parse(text, ForkJoinPool.commonPool());
+    }
+
+    public static List<Result> parse(char[] text, ForkJoinPool pool) {
+        List<TopLevelForms.Form> forms = TopLevelForms.split(text);
+        Result[] results = new Result[forms.size()];
+        pool.invoke(new ParseTask(text, forms, results, 0, forms.size()));
+        List<Result> list = new ArrayList<>(results.length);
+        for (Result r : results) {
+            list.add(r);
+        }
+        return list;
+    }
+
+    private static Result parseForm(char[] text, TopLevelForms.Form form) {
+        try {
+            PSTParser parser = TopLevelForms.parserFor(text, form);
+            return new Result(Binding.parsePST(parser.parse()), null);
+        } catch (RuntimeException e) {
+            return new Result(null, e);
+        }
+    }
+
+    // Parses forms[from...to) into results[from...to), splitting the range in half until it is one batch.
+    private static class ParseTask extends RecursiveAction {
+        private final char[] text;
+        private final List<TopLevelForms.Form> forms;
+        private final Result[] results;
+        private final int from, to;
+
+        ParseTask(char[] text, List<TopLevelForms.Form> forms, Result[] results, int from, int to) {
+            this.text = text;
+            this.forms = forms;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_SIZE) {
+                for (int i = from; i < to; i++) {
+                    results[i] = parseForm(text, forms.get(i));
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ParseTask(text, forms, results, from, middle),
+                        new ParseTask(text, forms, results, middle, to));
+            }
+        }
+    }
+}
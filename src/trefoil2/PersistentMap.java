@@ -0,0 +1,235 @@
+package trefoil2;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An immutable map from strings to values, implemented as a hash array mapped trie (HAMT).
+ *
+ * plus() returns a *new* map and leaves this one unchanged. The new map shares all but
+ * O(log n) of its nodes with the old one, so extending a map is cheap no matter how big it is.
+ *
+ * The read-only Map methods come from AbstractMap, so two PersistentMaps with the same
+ * mappings are equal (and print) just like two HashMaps would be. Null values are not allowed.
+ */
+public final class PersistentMap<V> extends AbstractMap<String, V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final PersistentMap<?> EMPTY = new PersistentMap<>(null, 0);
+
+    private final Node root;  // null iff the map is empty
+    private final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentMap<V> empty() {
+        return (PersistentMap<V>) EMPTY;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String k = (String) key;
+        int hash = k.hashCode();
+        Node node = root;
+        int shift = 0;
+        while (node != null) {
+            if (node instanceof Leaf) {
+                Leaf leaf = (Leaf) node;
+                return leaf.hash == hash && leaf.key.equals(k) ? (V) leaf.value : null;
+            } else if (node instanceof Branch) {
+                Branch branch = (Branch) node;
+                int bit = bitFor(hash, shift);
+                if ((branch.bitmap & bit) == 0) {
+                    return null;
+                }
+                node = branch.children[Integer.bitCount(branch.bitmap & (bit - 1))];
+                shift += BITS;
+            } else {
+                Collision collision = (Collision) node;
+                if (collision.hash != hash) {
+                    return null;
+                }
+                for (Leaf leaf : collision.leaves) {
+                    if (leaf.key.equals(k)) {
+                        return (V) leaf.value;
+                    }
+                }
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a *new* map that is this map extended by the binding key -> value.
+     *
+     * Does not change this!
+     */
+    public PersistentMap<V> plus(String key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("PersistentMap does not support null values");
+        }
+        boolean isNewKey = !containsKey(key);
+        Node newRoot = insert(root, new Leaf(key, key.hashCode(), value), 0);
+        return new PersistentMap<>(newRoot, isNewKey ? size + 1 : size);
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return new AbstractSet<Entry<String, V>>() {
+            @Override
+            public Iterator<Entry<String, V>> iterator() {
+                List<Entry<String, V>> entries = new ArrayList<>(size);
+                collect(root, entries);
+                return entries.iterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private void collect(Node node, List<Entry<String, V>> out) {
+        if (node == null) {
+            return;
+        }
+        if (node instanceof Leaf) {
+            Leaf leaf = (Leaf) node;
+            out.add(new SimpleImmutableEntry<>(leaf.key, (V) leaf.value));
+        } else if (node instanceof Branch) {
+            for (Node child : ((Branch) node).children) {
+                collect(child, out);
+            }
+        } else {
+            for (Leaf leaf : ((Collision) node).leaves) {
+                collect(leaf, out);
+            }
+        }
+    }
+
+    private static int bitFor(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    // Returns a copy of node with leaf inserted. Only the nodes on the path to leaf are copied.
+    private static Node insert(Node node, Leaf leaf, int shift) {
+        if (node == null) {
+            return leaf;
+        } else if (node instanceof Leaf) {
+            Leaf existing = (Leaf) node;
+            if (existing.hash == leaf.hash) {
+                if (existing.key.equals(leaf.key)) {
+                    return leaf;
+                }
+                return new Collision(leaf.hash, new Leaf[]{existing, leaf});
+            }
+            return merge(existing, leaf, shift);
+        } else if (node instanceof Branch) {
+            Branch branch = (Branch) node;
+            int bit = bitFor(leaf.hash, shift);
+            int index = Integer.bitCount(branch.bitmap & (bit - 1));
+            if ((branch.bitmap & bit) == 0) {
+                Node[] children = new Node[branch.children.length + 1];
+                System.arraycopy(branch.children, 0, children, 0, index);
+                children[index] = leaf;
+                System.arraycopy(branch.children, index, children, index + 1, branch.children.length - index);
+                return new Branch(branch.bitmap | bit, children);
+            }
+            Node[] children = branch.children.clone();
+            children[index] = insert(children[index], leaf, shift + BITS);
+            return new Branch(branch.bitmap, children);
+        } else {
+            Collision collision = (Collision) node;
+            if (collision.hash != leaf.hash) {
+                // Push the collision node one level down and try again.
+                Branch branch = new Branch(bitFor(collision.hash, shift), new Node[]{collision});
+                return insert(branch, leaf, shift);
+            }
+            for (int i = 0; i < collision.leaves.length; i++) {
+                if (collision.leaves[i].key.equals(leaf.key)) {
+                    Leaf[] leaves = collision.leaves.clone();
+                    leaves[i] = leaf;
+                    return new Collision(leaf.hash, leaves);
+                }
+            }
+            Leaf[] leaves = new Leaf[collision.leaves.length + 1];
+            System.arraycopy(collision.leaves, 0, leaves, 0, collision.leaves.length);
+            leaves[collision.leaves.length] = leaf;
+            return new Collision(leaf.hash, leaves);
+        }
+    }
+
+    // Builds the smallest subtree holding two leaves with different hashes.
+    private static Node merge(Leaf a, Leaf b, int shift) {
+        int indexA = (a.hash >>> shift) & MASK;
+        int indexB = (b.hash >>> shift) & MASK;
+        if (indexA == indexB) {
+            return new Branch(1 << indexA, new Node[]{merge(a, b, shift + BITS)});
+        }
+        // children are ordered by bit position
+        int bitmap = (1 << indexA) | (1 << indexB);
+        return indexA < indexB ? new Branch(bitmap, new Node[]{a, b}) : new Branch(bitmap, new Node[]{b, a});
+    }
+
+    private static abstract class Node {
+    }
+
+    private static final class Leaf extends Node {
+        private final String key;
+        private final int hash;
+        private final Object value;
+
+        private Leaf(String key, int hash, Object value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    private static final class Branch extends Node {
+        private final int bitmap;
+        private final Node[] children;
+
+        private Branch(int bitmap, Node[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+    }
+
+    // Leaves whose keys have exactly the same 32-bit hash.
+    private static final class Collision extends Node {
+        private final int hash;
+        private final Leaf[] leaves;
+
+        private Collision(int hash, Leaf[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package trefoil2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Computes lexical addresses for the local variables in an expression AST.
+ *
+ * Each let and each function call introduces one frame of local variables at run time
+ * (see Interpreter.DynamicEnvironment.Frame). Since Trefoil is lexically scoped, which frame
+ * a local variable lives in is known before the program runs. The resolver rewrites every
+ * VariableReference and FunctionReference so that it records how many frames up its name is
+ * bound (the depth) and at which index (the slot). Names that are not bound by an enclosing
+ * let or parameter are left with depth -1 and are looked up by name, which is also what
+ * reports the usual "unbounded" errors at run time.
+ *
+ * The resolver returns a new AST and never changes its argument. Lexical addresses are excluded
+ * from equals, so a resolved AST is equal to the unresolved one.
+ */
+public class Resolver {
+    // The names bound by each enclosing frame, innermost first.
+    private static class Scope {
+        private final List<String> names;
+        private final Scope parent;
+
+        private Scope(List<String> names, Scope parent) {
+            this.names = names;
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * Resolves an expression that will be evaluated outside of any let or function body,
+     * e.g., a top-level expression.
+     */
+    public static Expression resolve(Expression e) {
+        return resolve(e, (Scope) null);
+    }
+
+    /**
+     * Resolves the body of a function whose parameters are params.
+     */
+    public static Expression resolve(Expression body, List<String> params) {
+        return resolve(body, new Scope(params, null));
+    }
+
+    private static Expression resolve(Expression e, Scope scope) {
+        if (e instanceof Expression.IntegerLiteral
+                || e instanceof Expression.BigIntegerLiteral
+                || e instanceof Expression.BooleanLiteral
+                || e instanceof Expression.Nil) {
+            return e;
+        } else if (e instanceof Expression.VariableReference) {
+            Expression.VariableReference var = (Expression.VariableReference) e;
+            int depth = 0;
+            for (Scope s = scope; s != null; s = s.parent, depth++) {
+                int slot = s.names.lastIndexOf(var.getVarname());
+                if (slot >= 0) {
+                    return new Expression.VariableReference(var.getVarname(), depth, slot);
+                }
+            }
+            return new Expression.VariableReference(var.getVarname());
+        } else if (e instanceof Expression.Plus) {
+            Expression.Plus p = (Expression.Plus) e;
+            return new Expression.Plus(resolve(p.getLeft(), scope), resolve(p.getRight(), scope));
+        } else if (e instanceof Expression.Minus) {
+            Expression.Minus p = (Expression.Minus) e;
+            return new Expression.Minus(resolve(p.getLeft(), scope), resolve(p.getRight(), scope));
+        } else if (e instanceof Expression.Times) {
+            Expression.Times p = (Expression.Times) e;
+            return new Expression.Times(resolve(p.getLeft(), scope), resolve(p.getRight(), scope));
+        } else if (e instanceof Expression.Equals) {
+            Expression.Equals p = (Expression.Equals) e;
+            return new Expression.Equals(resolve(p.getLeft(), scope), resolve(p.getRight(), scope));
+        } else if (e instanceof Expression.ifStatement) {
+            Expression.ifStatement p = (Expression.ifStatement) e;
+            return new Expression.ifStatement(resolve(p.getCondition(), scope),
+                    resolve(p.getTrueStatement(), scope),
+                    resolve(p.getFalseStatement(), scope));
+        } else if (e instanceof Expression.let) {
+            Expression.let p = (Expression.let) e;
+            if (!(p.getTemporalEnvironment() instanceof Expression.letChildren1)) {
+                // leave it to the interpreter to report
+                return e;
+            }
+            Expression.letChildren1 f = (Expression.letChildren1) p.getTemporalEnvironment();
+            Scope inner = new Scope(Collections.singletonList(f.getLocalVariable()), scope);
+            return new Expression.let(
+                    new Expression.letChildren1(f.getLocalVariable(), resolve(f.getExpression(), scope)),
+                    resolve(p.getExpression(), inner));
+        } else if (e instanceof Expression.Isnil) {
+            return new Expression.Isnil(resolve(((Expression.Isnil) e).getExpression(), scope));
+        } else if (e instanceof Expression.Cons) {
+            Expression.Cons p = (Expression.Cons) e;
+            return new Expression.Cons(resolve(p.getExpression1(), scope), resolve(p.getExpression2(), scope));
+        } else if (e instanceof Expression.IsCons) {
+            return new Expression.IsCons(resolve(((Expression.IsCons) e).getExpression(), scope));
+        } else if (e instanceof Expression.car) {
+            return new Expression.car(resolve(((Expression.car) e).getExpression(), scope));
+        } else if (e instanceof Expression.cdr) {
+            return new Expression.cdr(resolve(((Expression.cdr) e).getExpression(), scope));
+        } else if (e instanceof Expression.FunctionReference) {
+            Expression.FunctionReference func = (Expression.FunctionReference) e;
+            List<Expression> args = resolveAll(func.getArgs(), scope);
+            int depth = 0;
+            for (Scope s = scope; s != null; s = s.parent, depth++) {
+                int slot = s.names.lastIndexOf(func.getFunname());
+                if (slot >= 0) {
+                    return new Expression.FunctionReference(func.getFunname(), args, depth, slot);
+                }
+            }
+            return new Expression.FunctionReference(func.getFunname(), args);
+        } else if (e instanceof Expression.Findmax) {
+            return new Expression.Findmax(resolveAll(((Expression.Findmax) e).getArgs(), scope));
+        } else {
+            throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
+        }
+    }
+
+    private static List<Expression> resolveAll(List<Expression> es, Scope scope) {
+        List<Expression> resolved = new ArrayList<>(es.size());
+        for (Expression e : es) {
+            resolved.add(resolve(e, scope));
+        }
+        return resolved;
+    }
+}
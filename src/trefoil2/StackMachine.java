@@ -0,0 +1,290 @@
+package trefoil2;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Evaluates expressions without using the Java stack, used by Interpreter.Engine.STACK.
+ *
+ * The tree walker remembers "what to do with a value once it has been computed" in its Java stack
+ * frames, so deep non-tail recursion like (cons n (range (- n 1))) runs out of Java stack long before
+ * it runs out of memory. The stack machine keeps those continuations in its own arrays on the heap
+ * instead. Each continuation is the expression that is waiting for a value, the environment it was
+ * being evaluated in, how far along it is (step), and the partial results it has collected so far.
+ *
+ * The continuation stack grows as needed, up to a budget of maxDepth continuations. Past that, it
+ * reports a TrefoilError.RuntimeError rather than using up all the memory.
+ *
+ * Expressions in tail position replace their continuation instead of pushing a new one, so tail
+ * calls run in constant space here too.
+ */
+public class StackMachine {
+    // By default, allow about ten million pending continuations (a few hundred MB of heap).
+    private static volatile int maxDepth = Integer.getInteger("trefoil.maxStack", 10_000_000);
+
+    /**
+     * Sets the maximum number of pending continuations an evaluation may use.
+     */
+    public static void setMaxDepth(int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("stack budget must be positive");
+        }
+        maxDepth = depth;
+    }
+
+    public static int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Evaluates e in the given environment. Returns the resulting value.
+     */
+    public static Expression evaluate(Expression e, Interpreter.DynamicEnvironment environment) {
+        return new StackMachine(maxDepth).run(e, environment);
+    }
+
+    // The continuation stack, as parallel arrays. Entry i is live iff i < sp.
+    private Expression[] nodes = new Expression[64];
+    private Interpreter.DynamicEnvironment[] envs = new Interpreter.DynamicEnvironment[64];
+    private int[] steps = new int[64];
+    private Object[] partials = new Object[64];
+    private int sp = 0;
+    private final int limit;
+
+    private StackMachine(int limit) {
+        this.limit = limit;
+    }
+
+    private void push(Expression node, Interpreter.DynamicEnvironment env, Object partial) {
+        if (sp >= limit) {
+            throw new Trefoil2.TrefoilError.RuntimeError(
+                    "recursion is too deep (exceeded the stack budget of " + limit + " frames)");
+        }
+        if (sp == nodes.length) {
+            int capacity = (int) Math.min((long) sp * 2, limit);
+            nodes = Arrays.copyOf(nodes, capacity);
+            envs = Arrays.copyOf(envs, capacity);
+            steps = Arrays.copyOf(steps, capacity);
+            partials = Arrays.copyOf(partials, capacity);
+        }
+        nodes[sp] = node;
+        envs[sp] = env;
+        steps[sp] = 0;
+        partials[sp] = partial;
+        sp++;
+    }
+
+    private void pop() {
+        sp--;
+        // let the garbage collector have them
+        nodes[sp] = null;
+        envs[sp] = null;
+        partials[sp] = null;
+    }
+
+    private Expression run(Expression e, Interpreter.DynamicEnvironment env) {
+        Expression value;
+        eval:
+        while (true) {
+            // Phase 1: take e apart, pushing continuations, until some subexpression is a value.
+            if (e instanceof Expression.IntegerLiteral
+                    || e instanceof Expression.BigIntegerLiteral
+                    || e instanceof Expression.BooleanLiteral
+                    || e instanceof Expression.Nil) {
+                value = e;
+            } else if (e instanceof Expression.VariableReference) {
+                Expression.VariableReference var = (Expression.VariableReference) e;
+                value = var.getDepth() >= 0 ? env.getLocal(var.getDepth(), var.getSlot()) : env.getVariable(var.getVarname());
+            } else if (e instanceof Expression.Plus) {
+                push(e, env, null);
+                e = ((Expression.Plus) e).getLeft();
+                continue;
+            } else if (e instanceof Expression.Minus) {
+                push(e, env, null);
+                e = ((Expression.Minus) e).getLeft();
+                continue;
+            } else if (e instanceof Expression.Times) {
+                push(e, env, null);
+                e = ((Expression.Times) e).getLeft();
+                continue;
+            } else if (e instanceof Expression.Equals) {
+                push(e, env, null);
+                e = ((Expression.Equals) e).getLeft();
+                continue;
+            } else if (e instanceof Expression.ifStatement) {
+                push(e, env, null);
+                e = ((Expression.ifStatement) e).getCondition();
+                continue;
+            } else if (e instanceof Expression.let) {
+                Expression.let p = (Expression.let) e;
+                if (!(p.getTemporalEnvironment() instanceof Expression.letChildren1)) {
+                    throw new Trefoil2.TrefoilError.AbstractSyntaxError("first argument of let expression is not a definition");
+                }
+                push(e, env, null);
+                e = ((Expression.letChildren1) p.getTemporalEnvironment()).getExpression();
+                continue;
+            } else if (e instanceof Expression.Isnil) {
+                push(e, env, null);
+                e = ((Expression.Isnil) e).getExpression();
+                continue;
+            } else if (e instanceof Expression.Cons) {
+                push(e, env, null);
+                e = ((Expression.Cons) e).getExpression1();
+                continue;
+            } else if (e instanceof Expression.IsCons) {
+                push(e, env, null);
+                e = ((Expression.IsCons) e).getExpression();
+                continue;
+            } else if (e instanceof Expression.car) {
+                push(e, env, null);
+                e = ((Expression.car) e).getExpression();
+                continue;
+            } else if (e instanceof Expression.cdr) {
+                push(e, env, null);
+                e = ((Expression.cdr) e).getExpression();
+                continue;
+            } else if (e instanceof Expression.FunctionReference) {
+                Expression.FunctionReference func = (Expression.FunctionReference) e;
+                Interpreter.DynamicEnvironment.Entry.FunctionEntry entry = Interpreter.lookupFunction(func, env);
+                Interpreter.checkArity(func, entry.getFunctionBinding());
+                if (func.getArgs().isEmpty()) {
+                    env = entry.getDefiningEnvironment().extendFrame(Collections.emptyList(), new Expression[0]);
+                    e = entry.getFunctionBinding().getBody();
+                    continue;
+                }
+                push(e, env, new Call(entry, new Expression[func.getArgs().size()]));
+                e = func.getArgs().get(0);
+                continue;
+            } else if (e instanceof Expression.Findmax) {
+                push(e, env, null);
+                e = ((Expression.Findmax) e).getArgs().get(0);
+                continue;
+            } else {
+                throw new Trefoil2.InternalInterpreterError("\"impossible\" expression AST node " + e.getClass());
+            }
+
+            // Phase 2: hand value to the continuations until one of them needs another subexpression evaluated.
+            while (sp > 0) {
+                int top = sp - 1;
+                Expression node = nodes[top];
+                Interpreter.DynamicEnvironment nodeEnv = envs[top];
+                int step = steps[top];
+
+                if (node instanceof Expression.Plus
+                        || node instanceof Expression.Minus
+                        || node instanceof Expression.Times
+                        || node instanceof Expression.Equals
+                        || node instanceof Expression.Cons) {
+                    if (step == 0) {
+                        steps[top] = 1;
+                        partials[top] = value;
+                        e = secondOperand(node);
+                        env = nodeEnv;
+                        continue eval;
+                    }
+                    Expression left = (Expression) partials[top];
+                    pop();
+                    value = combine(node, left, value);
+                } else if (node instanceof Expression.ifStatement) {
+                    Expression.ifStatement p = (Expression.ifStatement) node;
+                    pop();
+                    e = Interpreter.isFalse(value) ? p.getFalseStatement() : p.getTrueStatement();
+                    env = nodeEnv;
+                    continue eval;
+                } else if (node instanceof Expression.let) {
+                    Expression.let p = (Expression.let) node;
+                    String localVariable = ((Expression.letChildren1) p.getTemporalEnvironment()).getLocalVariable();
+                    pop();
+                    env = nodeEnv.extendFrame(Collections.singletonList(localVariable), new Expression[]{value});
+                    e = p.getExpression();
+                    continue eval;
+                } else if (node instanceof Expression.Isnil) {
+                    pop();
+                    value = Interpreter.isNil(value);
+                } else if (node instanceof Expression.IsCons) {
+                    pop();
+                    value = Interpreter.isCons(value);
+                } else if (node instanceof Expression.car) {
+                    pop();
+                    value = Interpreter.car(value);
+                } else if (node instanceof Expression.cdr) {
+                    pop();
+                    value = Interpreter.cdr(value);
+                } else if (node instanceof Expression.FunctionReference) {
+                    Expression.FunctionReference func = (Expression.FunctionReference) node;
+                    Call call = (Call) partials[top];
+                    call.vals[step] = value;
+                    if (step + 1 < call.vals.length) {
+                        steps[top] = step + 1;
+                        e = func.getArgs().get(step + 1);
+                        env = nodeEnv;
+                        continue eval;
+                    }
+                    pop();
+                    env = call.entry.getDefiningEnvironment()
+                            .extendFrame(call.entry.getFunctionBinding().getArgnames(), call.vals);
+                    e = call.entry.getFunctionBinding().getBody();
+                    continue eval;
+                } else if (node instanceof Expression.Findmax) {
+                    List<Expression> args = ((Expression.Findmax) node).getArgs();
+                    Expression maxVal = Interpreter.maxArgument(value);
+                    if (step > 0) {
+                        maxVal = Interpreter.max((Expression) partials[top], maxVal);
+                    }
+                    if (step + 1 < args.size()) {
+                        steps[top] = step + 1;
+                        partials[top] = maxVal;
+                        e = args.get(step + 1);
+                        env = nodeEnv;
+                        continue eval;
+                    }
+                    pop();
+                    value = maxVal;
+                } else {
+                    throw new Trefoil2.InternalInterpreterError("\"impossible\" continuation " + node.getClass());
+                }
+            }
+            return value;
+        }
+    }
+
+    private static Expression secondOperand(Expression node) {
+        if (node instanceof Expression.Plus) {
+            return ((Expression.Plus) node).getRight();
+        } else if (node instanceof Expression.Minus) {
+            return ((Expression.Minus) node).getRight();
+        } else if (node instanceof Expression.Times) {
+            return ((Expression.Times) node).getRight();
+        } else if (node instanceof Expression.Equals) {
+            return ((Expression.Equals) node).getRight();
+        } else {
+            return ((Expression.Cons) node).getExpression2();
+        }
+    }
+
+    private static Expression combine(Expression node, Expression v1, Expression v2) {
+        if (node instanceof Expression.Plus) {
+            return Interpreter.plus(v1, v2);
+        } else if (node instanceof Expression.Minus) {
+            return Interpreter.minus(v1, v2);
+        } else if (node instanceof Expression.Times) {
+            return Interpreter.times(v1, v2);
+        } else if (node instanceof Expression.Equals) {
+            return Interpreter.equals(v1, v2);
+        } else {
+            return new Expression.Cons(v1, v2);
+        }
+    }
+
+    // The partial state of a function call whose arguments are being evaluated.
+    private static class Call {
+        private final Interpreter.DynamicEnvironment.Entry.FunctionEntry entry;
+        private final Expression[] vals;
+
+        Call(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry, Expression[] vals) {
+            this.entry = entry;
+            this.vals = vals;
+        }
+    }
+}
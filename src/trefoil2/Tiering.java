@@ -0,0 +1,143 @@
+package trefoil2;
+
+import java.io.PrintStream;
+
+/**
+ * Decides when a function has run enough to be worth compiling, used by Interpreter.Engine.TIERED.
+ *
+ * Every function starts out interpreted by the tree walker. Its FunctionEntry counts how often it is
+ * called, split into invocations (calls from elsewhere) and back edges (calls the function makes to
+ * itself, which is how Trefoil loops). Once the two add up to the threshold, the function is promoted:
+ * - to Tier.JVM if JvmCompiler can compile it, i.e., it is a numeric function, and
+ * - to Tier.CLOSURE, running its ClosureCompiler-compiled body, otherwise.
+ * After that, the tree walker hands every call of the function to the compiled form. A JVM-tier function
+ * whose arithmetic overflows a long runs closure-compiled from then on. Which form runs
+ * is invisible to the program: all of them compute the same values and report the same errors.
+ *
+ * Calls made from closure-compiled code are counted too (see callFromClosure), so a numeric helper
+ * called from a closure-tier function is still promoted to Tier.JVM. Until then, it runs
+ * closure-compiled, like everything that code calls. The counters are not synchronized, so concurrent
+ * calls may lose some counts, which only delays a promotion.
+ */
+public class Tiering {
+    /**
+     * How a function is run. Functions only ever move up from INTERPRETED.
+     */
+    public enum Tier {
+        INTERPRETED, CLOSURE, JVM
+    }
+
+    // The number of calls after which a function is promoted.
+    private static int threshold = Integer.getInteger("trefoil.tierThreshold", 1000);
+
+    // Where promotions are printed, or null to not print them.
+    private static PrintStream log = Boolean.getBoolean("trefoil.printTiers") ? System.err : null;
+
+    public static int getThreshold() {
+        return threshold;
+    }
+
+    public static void setThreshold(int calls) {
+        if (calls < 0) {
+            throw new IllegalArgumentException("tier threshold must be non-negative");
+        }
+        threshold = calls;
+    }
+
+    /**
+     * Prints a line to out whenever a function is promoted. Pass null to stop printing.
+     */
+    public static void setLog(PrintStream out) {
+        log = out;
+    }
+
+    /**
+     * Called by the tree walker for each call of the function in entry, with its arguments already
+     * evaluated in the caller's environment. Counts the call, and runs it in the function's compiled
+     * form if it has one.
+     *
+     * Returns null when the call should be interpreted by the caller, as the tree walker normally would.
+     */
+    static Expression call(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry, Expression[] vals,
+                           Interpreter.DynamicEnvironment caller) {
+        if (!count(entry, caller)) {
+            return null;
+        }
+
+        if (entry.getTier() == Tier.JVM) {
+            // null when the arguments are not integers or the result overflows
+            Expression result = JvmCompiler.invoke(entry, vals);
+            if (result != null || JvmCompiler.kernelOf(entry) != null) {
+                return result;
+            }
+            // it overflowed, and JvmCompiler dropped its kernel: run it closure-compiled from now on
+        }
+        Interpreter.DynamicEnvironment callenv =
+                entry.getDefiningEnvironment().extendFrame(entry.getFunctionBinding().getArgnames(), vals);
+        return ClosureCompiler.call(entry, callenv);
+    }
+
+    /**
+     * Called by closure-compiled code, under Interpreter.Engine.TIERED, for each call of the function in
+     * entry. Counts the call like call() does, and runs it if the function is JVM-compiled.
+     *
+     * Returns null when the caller should run the function's closure-compiled body itself, which it can
+     * do as a tail call.
+     */
+    static Expression callFromClosure(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry, Expression[] vals,
+                                      Interpreter.DynamicEnvironment caller) {
+        if (count(entry, caller) && entry.getTier() == Tier.JVM) {
+            // null when the arguments are not integers or the result overflows
+            return JvmCompiler.invoke(entry, vals);
+        }
+        return null;
+    }
+
+    // Counts a call of the function in entry while it is interpreted, and promotes it once the counts
+    // reach the threshold. Returns whether the function is compiled.
+    private static boolean count(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry,
+                                 Interpreter.DynamicEnvironment caller) {
+        if (entry.getTier() == Tier.INTERPRETED) {
+            if (isBackEdge(entry, caller)) {
+                entry.setBackEdges(entry.getBackEdges() + 1);
+            } else {
+                entry.setInvocations(entry.getInvocations() + 1);
+            }
+            if ((long) entry.getInvocations() + entry.getBackEdges() < threshold) {
+                return false;
+            }
+            promote(entry);
+        }
+        return true;
+    }
+
+    // Synchronized so that threads reaching the threshold together promote the function only once.
+    private static void promote(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry) {
+        synchronized (entry) {
+            if (entry.getTier() != Tier.INTERPRETED) {
+                return;
+            }
+            Tier tier = JvmCompiler.kernelOf(entry) != null ? Tier.JVM : Tier.CLOSURE;
+            entry.setTier(tier);
+            if (log != null) {
+                log.println("tier: " + entry.getFunctionBinding().getFunname() + " promoted to "
+                        + tier.name().toLowerCase() + " after " + entry.getInvocations() + " invocations and "
+                        + entry.getBackEdges() + " back edges");
+            }
+        }
+    }
+
+    // A call is a back edge when it is made from the function's own body. The outermost frame of a
+    // function body is the one its call created, which holds the function's parameter list.
+    private static boolean isBackEdge(Interpreter.DynamicEnvironment.Entry.FunctionEntry entry,
+                                      Interpreter.DynamicEnvironment caller) {
+        Interpreter.DynamicEnvironment.Frame f = caller.getFrame();
+        if (f == null) {
+            return false;
+        }
+        while (f.getParent() != null) {
+            f = f.getParent();
+        }
+        return f.getNames() == entry.getFunctionBinding().getArgnames();
+    }
+}
@@ -3,6 +3,12 @@ package trefoil2;
 import parser.PSTParser;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Interpreter for the Trefoil v2 language.
@@ -11,52 +17,227 @@ public class Trefoil2 {
     /**
      * Main command-line entry point.
      *
-     * Takes either 0 or 1 argument on command line.
+     * Takes options followed by either 0 or 1 argument on command line.
      * - If 0 args passed, reads from standard input (keyboard)
      * - If 1 arg passed, opens that arg as a file and reads from it.
      *
+     * Options:
+     * - --engine=tree|closure|stack|bytecode|jvm|tiered selects how expressions are evaluated (see Interpreter.Engine).
+     * - --max-stack=N limits the stack engine to N pending continuations (see StackMachine).
+     * - --tier-threshold=N makes the tiered engine compile a function after N calls (see Tiering).
+     * - --print-tiers prints a line to standard error whenever the tiered engine compiles a function.
+     * - -O (or --optimize) folds constants and simplifies expressions before running them (see Optimizer).
+     * - --parallel evaluates the arguments of calls, and the operands of +, *, and cons, in parallel (see Parallel).
+     * - --memoize caches the results of all function calls, and --memoize=f,g only those of f and g (see Memoizer).
+     *   Not supported by the stack and bytecode engines.
+     * - --memo-size=N keeps at most N results in the memoization cache.
+     * - --print-depth=N and --print-length=N truncate printed lists nested N deep, or longer than N (see ValuePrinter).
+     * - --print-memo-stats prints the memoization cache's hits and misses to standard error at the end.
+     * - --parallel-parse reads the whole input first and parses its top-level forms in parallel
+     *   (see ParallelParser). Not for interactive use.
+     * - --ast-cache loads the parsed bindings of the file from its binary cache when the file has not
+     *   changed since the cache was written, and otherwise parses it and writes the cache (see AstCache).
+     *
      * Implements the semantics of Trefoil v2 programs: reads bindings
      * one by one off the input and executes them on the dynamic environment.
      */
     public static void main(String[] args) {
+        List<String> files = new ArrayList<>();
+        boolean parallelParse = false;
+        boolean astCache = false;
+        boolean printMemoStats = false;
+        boolean memoize = false;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                try {
+                    Interpreter.setEngine(Interpreter.Engine.parse(arg.substring("--engine=".length())));
+                } catch (IllegalArgumentException e) {
+                    System.err.println(e.getMessage());
+                    System.exit(1);
+                }
+            } else if (arg.startsWith("--max-stack=")) {
+                try {
+                    StackMachine.setMaxDepth(Integer.parseInt(arg.substring("--max-stack=".length())));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Bad stack budget " + arg);
+                    System.exit(1);
+                }
+            } else if (arg.startsWith("--tier-threshold=")) {
+                try {
+                    Tiering.setThreshold(Integer.parseInt(arg.substring("--tier-threshold=".length())));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Bad tier threshold " + arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--print-tiers")) {
+                Tiering.setLog(System.err);
+            } else if (arg.equals("-O") || arg.equals("--optimize")) {
+                Optimizer.setEnabled(true);
+            } else if (arg.equals("--parallel")) {
+                Parallel.setEnabled(true);
+            } else if (arg.equals("--memoize")) {
+                Memoizer.setEnabled(true);
+                memoize = true;
+            } else if (arg.startsWith("--memoize=")) {
+                for (String funname : arg.substring("--memoize=".length()).split(",")) {
+                    Memoizer.setMemoized(funname, true);
+                }
+                memoize = true;
+            } else if (arg.startsWith("--memo-size=")) {
+                try {
+                    Memoizer.setCapacity(Integer.parseInt(arg.substring("--memo-size=".length())));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Bad memo size " + arg);
+                    System.exit(1);
+                }
+            } else if (arg.startsWith("--print-depth=") || arg.startsWith("--print-length=")) {
+                try {
+                    int n = Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                    ValuePrinter printer = ValuePrinter.getDefault();
+                    ValuePrinter.setDefault(arg.startsWith("--print-depth=") ? new ValuePrinter(n, printer.getMaxLength())
+                                                                           : new ValuePrinter(printer.getMaxDepth(), n));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Bad print limit " + arg);
+                    System.exit(1);
+                }
+            } else if (arg.equals("--print-memo-stats")) {
+                printMemoStats = true;
+            } else if (arg.equals("--parallel-parse")) {
+                parallelParse = true;
+            } else if (arg.equals("--ast-cache")) {
+                astCache = true;
+            } else if (arg.startsWith("--")) {
+                System.err.println("Unknown option " + arg);
+                System.exit(1);
+            } else {
+                files.add(arg);
+            }
+        }
+
         Reader inputReader = null;
-        if (args.length == 0) {
+        if (files.size() == 0) {
             inputReader = new InputStreamReader(System.in);
-        } else if (args.length == 1) {
+        } else if (files.size() == 1) {
             try {
-                inputReader = new FileReader(args[0]);
+                inputReader = new FileReader(files.get(0));
             } catch (FileNotFoundException e) {
-                System.err.println("Could not find file " + args[0]);
+                System.err.println("Could not find file " + files.get(0));
                 System.exit(1);
             }
         } else {
-            System.err.println("Expected 0 or 1 arguments but got " + args.length);
+            System.err.println("Expected 0 or 1 arguments but got " + files.size());
             System.exit(1);
         }
 
-        PSTParser parser = PSTParser.ofReader(inputReader);
+        if (memoize && (Interpreter.getEngine() == Interpreter.Engine.STACK
+                        || Interpreter.getEngine() == Interpreter.Engine.BYTECODE)) {
+            System.err.println("--memoize does not work with --engine=" + Interpreter.getEngine().name().toLowerCase());
+            System.exit(1);
+        }
 
+        if (astCache && files.size() != 1) {
+            System.err.println("--ast-cache needs a file");
+            System.exit(1);
+        }
+
+        // Output to a terminal shows up binding by binding. Output from a file is buffered, and written
+        // out in large blocks, which matters for programs that print many results.
+        Output out = new Output.Text(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), Charset.defaultCharset()), 1 << 16),
+                files.isEmpty());
+        try {
+            run(parallelParse, astCache, files, inputReader, out);
+        } finally {
+            out.flush();
+        }
+
+        if (printMemoStats) {
+            System.err.println("memo: " + Memoizer.getHits() + " hits, " + Memoizer.getMisses() + " misses, "
+                    + Memoizer.size() + " results cached");
+        }
+    }
+
+    // Interprets the program, reporting to out.
+    private static void run(boolean parallelParse, boolean astCache, List<String> files, Reader inputReader, Output out) {
         Interpreter.DynamicEnvironment env = new Interpreter.DynamicEnvironment();
-        while (true) {
-            // Note that a TrefoilError will not cause this loop to exit!
-            // This is good for interactive use so that users can try again.
-            try {
-                ParenthesizedSymbolTree pstree = parser.parse();
-                if (pstree == null) {
-                    break;
+        if (parallelParse || astCache) {
+            List<ParallelParser.Result> results = astCache ? parseCached(Paths.get(files.get(0)))
+                                                           : ParallelParser.parse(readAll(inputReader));
+            for (ParallelParser.Result result : results) {
+                // The results are in source order, so this behaves just like the loop below.
+                try {
+                    env = Interpreter.interpretBinding(result.get(), env, out);
+                } catch (TrefoilError e) {
+                    out.error(e);
                 }
-                // System.out.println(pstree);  // uncomment to see the PST
-                Binding b = Binding.parsePST(pstree);
-                //System.out.println(b);  // uncomment to see the parsed binding
-                env = Interpreter.interpretBinding(b, env);
-            } catch (TrefoilError e) {
-                System.out.println(e.getMessage());
             }
+        } else {
+            PSTParser parser = PSTParser.ofReader(inputReader);
+            while (true) {
+                // Note that a TrefoilError will not cause this loop to exit!
+                // This is good for interactive use so that users can try again.
+                try {
+                    ParenthesizedSymbolTree pstree = parser.parse();
+                    if (pstree == null) {
+                        break;
+                    }
+                    // System.out.println(pstree);  // uncomment to see the PST
+                    Binding b = Binding.parsePST(pstree);
+                    //System.out.println(b);  // uncomment to see the parsed binding
+                    env = Interpreter.interpretBinding(b, env, out);
+                } catch (TrefoilError e) {
+                    out.error(e);
+                }
+            }
+        }
+
+        // print the environment, streamed in the format of the Lombok toString, but with functions as names
+        out.environment(env);
+    }
+
+    // Returns the bindings of source, from its AST cache if possible. Otherwise parses it, and caches the
+    // bindings if it parsed without errors.
+    private static List<ParallelParser.Result> parseCached(Path source) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(source);
+        } catch (IOException e) {
+            throw new InternalInterpreterError(e);
+        }
+        List<ParallelParser.Result> results = new ArrayList<>();
+        List<Binding> bindings = AstCache.load(source, bytes);
+        if (bindings != null) {
+            for (Binding b : bindings) {
+                results.add(ParallelParser.Result.of(b));
+            }
+            return results;
         }
 
-        // print the environment
-        System.out.println("final environment:");
-        System.out.println(env);  // Uses the default Lombok toString. It's fine to leave as is, even though it is verbose.
+        // the same charset that FileReader uses
+        results = ParallelParser.parse(new String(bytes, Charset.defaultCharset()).toCharArray());
+        bindings = new ArrayList<>();
+        try {
+            for (ParallelParser.Result result : results) {
+                bindings.add(result.get());
+            }
+        } catch (RuntimeException e) {
+            return results;  // do not cache a program with syntax errors; they are reported when interpreted
+        }
+        AstCache.store(source, bytes, bindings);
+        return results;
+    }
+
+    private static char[] readAll(Reader reader) {
+        CharArrayWriter text = new CharArrayWriter();
+        char[] buffer = new char[1 << 16];
+        try {
+            for (int n = reader.read(buffer); n >= 0; n = reader.read(buffer)) {
+                text.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new InternalInterpreterError(e);
+        }
+        return text.toCharArray();
     }
 
     /**
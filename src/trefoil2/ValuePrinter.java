@@ -0,0 +1,181 @@
+package trefoil2;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+
+/**
+ * Writes values and environments to a Writer as text, in the same format as their Lombok toString.
+ *
+ * Lists are printed without recursion, with an explicit stack, so a list of a million elements prints
+ * like any other, and nothing is built up in memory when the Writer streams its output.
+ *
+ * A printer can truncate what it prints:
+ * - a list inside maxDepth or more other lists prints as "...", and
+ * - a list longer than maxLength elements prints its first maxLength, and then "..." for the rest.
+ *
+ * In an environment, function entries print as just their name, rather than their whole definition.
+ * Variables print their values, truncated like any other value.
+ */
+public class ValuePrinter {
+    public static final ValuePrinter UNLIMITED = new ValuePrinter(Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+    // Used for echoing results on the command line (see Output.Text).
+    private static ValuePrinter defaultPrinter = new ValuePrinter(
+            Integer.getInteger("trefoil.printDepth", Integer.MAX_VALUE),
+            Integer.getInteger("trefoil.printLength", Integer.MAX_VALUE));
+
+    private final int maxDepth;
+    private final int maxLength;
+
+    public ValuePrinter(int maxDepth, int maxLength) {
+        if (maxDepth < 0 || maxLength < 0) {
+            throw new IllegalArgumentException("print depth and length must be non-negative");
+        }
+        this.maxDepth = maxDepth;
+        this.maxLength = maxLength;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    public static ValuePrinter getDefault() {
+        return defaultPrinter;
+    }
+
+    public static void setDefault(ValuePrinter printer) {
+        defaultPrinter = printer;
+    }
+
+    // Text to write later, n times over. Closing parens of a long list share one of these.
+    private static final class Pending {
+        private final String text;
+        private int n = 1;
+
+        Pending(String text) {
+            this.text = text;
+        }
+    }
+
+    // A value still to print: depth is the number of lists around it, and position its index in the
+    // list it is the tail of (0 if it is not a tail).
+    private static final class Item {
+        private final Expression value;
+        private final int depth;
+        private final int position;
+
+        Item(Expression value, int depth, int position) {
+            this.value = value;
+            this.depth = depth;
+            this.position = position;
+        }
+    }
+
+    public void print(Expression value, Writer out) throws IOException {
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(new Item(value, 0, 0));
+        while (!stack.isEmpty()) {
+            Object top = stack.pop();
+            if (top instanceof Pending) {
+                Pending pending = (Pending) top;
+                for (int i = 0; i < pending.n; i++) {
+                    out.write(pending.text);
+                }
+                continue;
+            }
+            Item item = (Item) top;
+            Expression e = item.value;
+            if (!(e instanceof Expression.Cons)) {
+                // literals print the same as their toString, and other ASTs are not values, so they are small
+                out.write(String.valueOf(e));
+            } else if (item.depth >= maxDepth || item.position >= maxLength) {
+                out.write("...");
+            } else {
+                Expression.Cons cons = (Expression.Cons) e;
+                out.write("Expression.Cons(expression1=");
+                // the closing paren of a tail goes right after its parent's
+                if (item.position > 0 && stack.peek() instanceof Pending && ((Pending) stack.peek()).text.equals(")")) {
+                    ((Pending) stack.peek()).n++;
+                } else {
+                    stack.push(new Pending(")"));
+                }
+                stack.push(new Item(cons.getExpression2(), item.depth, item.position + 1));
+                stack.push(new Pending(", expression2="));
+                stack.push(new Item(cons.getExpression1(), item.depth + 1, 0));
+            }
+        }
+    }
+
+    /**
+     * Prints env, with its functions as names.
+     */
+    public void print(Interpreter.DynamicEnvironment env, Writer out) throws IOException {
+        out.write("Interpreter.DynamicEnvironment(map={");
+        boolean first = true;
+        for (Map.Entry<String, Interpreter.DynamicEnvironment.Entry> binding : env.getMap().entrySet()) {
+            if (!first) {
+                out.write(", ");
+            }
+            first = false;
+            out.write(binding.getKey());
+            out.write('=');
+            Interpreter.DynamicEnvironment.Entry entry = binding.getValue();
+            if (entry instanceof Interpreter.DynamicEnvironment.Entry.FunctionEntry) {
+                out.write("Interpreter.DynamicEnvironment.Entry.FunctionEntry(funname=");
+                out.write(((Interpreter.DynamicEnvironment.Entry.FunctionEntry) entry).getFunctionBinding().getFunname());
+            } else {
+                out.write("Interpreter.DynamicEnvironment.Entry.VariableEntry(value=");
+                print(((Interpreter.DynamicEnvironment.Entry.VariableEntry) entry).getValue(), out);
+            }
+            out.write(')');
+        }
+        out.write("}, frame=");
+        int frames = 0;
+        for (Interpreter.DynamicEnvironment.Frame f = env.getFrame(); f != null; f = f.getParent()) {
+            out.write("Interpreter.DynamicEnvironment.Frame(names=");
+            out.write(String.valueOf(f.getNames()));
+            out.write(", values=[");
+            for (int i = 0; i < f.getValues().length; i++) {
+                if (i > 0) {
+                    out.write(", ");
+                }
+                print(f.getValues()[i], out);
+            }
+            out.write("], parent=");
+            frames++;
+        }
+        out.write("null");
+        for (int i = 0; i < frames; i++) {
+            out.write(')');
+        }
+        out.write(')');
+    }
+
+    public String toString(Expression value) {
+        StringWriter out = new StringWriter();
+        try {
+            print(value, out);
+        } catch (IOException e) {
+            throw new Trefoil2.InternalInterpreterError(e);  // a StringWriter does not throw
+        }
+        return out.toString();
+    }
+
+    public String toString(Interpreter.DynamicEnvironment env) {
+        StringWriter out = new StringWriter();
+        try {
+            print(env, out);
+        } catch (IOException e) {
+            throw new Trefoil2.InternalInterpreterError(e);
+        }
+        return out.toString();
+    }
+}
@@ -1,10 +1,16 @@
 import org.junit.Test;
 import trefoil2.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotSame;
+import static junit.framework.TestCase.assertSame;
+import static org.junit.Assert.assertThrows;
 
 public class Trefoil2Test {
     // ---------------------------------------------------------------------------------------------
@@ -108,6 +114,43 @@ public class Trefoil2Test {
                 Interpreter.interpretExpression(Expression.parseString("(* 1 true)")));
     }
 
+    @Test
+    public void testTimesTypeErrorMessage() {
+        Interpreter.Engine previous = Interpreter.getEngine();
+        try {
+            for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+                Interpreter.setEngine(engine);
+                Trefoil2.TrefoilError.RuntimeError e = assertThrows(Trefoil2.TrefoilError.RuntimeError.class,
+                        () -> Interpreter.interpretExpression(Expression.parseString("(* (+ 1 2) true)")));
+                assertEquals("two arguments of times expression are not all integers", e.getMessage());
+            }
+        } finally {
+            Interpreter.setEngine(previous);
+        }
+    }
+
+    @Test
+    public void testSmallIntegersShared() {
+        assertSame(Expression.ofInt(-128), Expression.ofInt(-128));
+        assertSame(Expression.ofInt(1024), Expression.ofInt(1024));
+        assertNotSame(Expression.ofInt(-129), Expression.ofInt(-129));
+        assertNotSame(Expression.ofInt(1025), Expression.ofInt(1025));
+        assertEquals(Expression.ofInt(-129), Expression.ofInt(-129));
+        assertEquals(Expression.ofInt(1025), Expression.ofInt(1025));
+        assertSame(Expression.ofInt(1024), Interpreter.interpretExpression(Expression.parseString("(+ 1000 24)")));
+        assertSame(Expression.ofInt(-128), Interpreter.interpretExpression(Expression.parseString("-128")));
+    }
+
+    @Test
+    public void testBooleansAndNilShared() {
+        assertSame(Expression.ofBoolean(true), Interpreter.interpretExpression(Expression.parseString("true")));
+        assertSame(Expression.ofBoolean(false), Interpreter.interpretExpression(Expression.parseString("false")));
+        assertSame(Expression.ofBoolean(true), Interpreter.interpretExpression(Expression.parseString("(= 3 3)")));
+        assertSame(Expression.ofBoolean(false), Interpreter.interpretExpression(Expression.parseString("(nil? (cons 1 nil))")));
+        assertSame(Expression.nil(), Interpreter.interpretExpression(Expression.parseString("nil")));
+        assertSame(Expression.nil(), Interpreter.interpretExpression(Expression.parseString("(cdr (cons 1 nil))")));
+    }
+
     @Test
     public void testEqualsIntTrue() {
         assertEquals(Expression.ofBoolean(true),
@@ -352,6 +395,51 @@ public class Trefoil2Test {
     // Binding tests
     // ---------------------------------------------------------------------------------------------
 
+    @Test
+    public void testPersistentMapCollisions() {
+        // "Aa" and "BB" have the same hashCode, 2112; "Bb" (2144) agrees with it in the lowest 5 bits
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        PersistentMap<Integer> m = PersistentMap.<Integer>empty().plus("Aa", 1).plus("BB", 2);
+        assertEquals(2, m.size());
+        assertEquals(Integer.valueOf(1), m.get("Aa"));
+        assertEquals(Integer.valueOf(2), m.get("BB"));
+
+        // overwriting a key in a collision node keeps the size, and leaves the old map alone
+        PersistentMap<Integer> overwritten = m.plus("BB", 3);
+        assertEquals(2, overwritten.size());
+        assertEquals(Integer.valueOf(3), overwritten.get("BB"));
+        assertEquals(Integer.valueOf(2), m.get("BB"));
+
+        // a different hash pushes the collision node down: two levels, since "Bb" agrees with it in the lowest 5 bits
+        PersistentMap<Integer> pushed = m.plus("Bb", 4).plus("C", 5);
+        assertEquals(4, pushed.size());
+        assertEquals(Integer.valueOf(1), pushed.get("Aa"));
+        assertEquals(Integer.valueOf(2), pushed.get("BB"));
+        assertEquals(Integer.valueOf(4), pushed.get("Bb"));
+        assertEquals(Integer.valueOf(5), pushed.get("C"));
+        assertEquals(null, pushed.get("CC"));
+        assertEquals(4, pushed.plus("Aa", 6).size());
+
+        // iteration follows the hash bits, and collision nodes in insertion order
+        List<String> keys = new ArrayList<>();
+        for (java.util.Map.Entry<String, Integer> e : pushed.entrySet()) {
+            keys.add(e.getKey());
+        }
+        assertEquals(java.util.Arrays.asList("Aa", "BB", "Bb", "C"), keys);
+        assertEquals(new java.util.HashMap<>(java.util.Map.of("Aa", 1, "BB", 2, "Bb", 4, "C", 5)), pushed);
+
+        // four keys with one hash
+        PersistentMap<Integer> four = PersistentMap.empty();
+        for (String k : new String[]{"AaAa", "AaBB", "BBAa", "BBBB"}) {
+            four = four.plus(k, k.length());
+        }
+        four = four.plus("AaBB", 0);
+        assertEquals(4, four.size());
+        assertEquals(4, four.entrySet().size());
+        assertEquals(Integer.valueOf(0), four.get("AaBB"));
+        assertEquals(Integer.valueOf(4), four.get("BBBB"));
+    }
+
     @Test
     public void testVarBinding() {
         assertEquals(Interpreter.DynamicEnvironment.singleton("x", Expression.ofInt(3)),
@@ -379,6 +467,89 @@ public class Trefoil2Test {
         assertEquals(env, Interpreter.interpretBinding(Binding.parseString("(* 2 x)"), env));
     }
 
+    @Test
+    public void testVarBindingEchoesOnlyTopLevel() {
+        // let and function parameters must not be echoed; only the top-level define is.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true);
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(
+                Binding.parseString("(define (f y) (let ((z (+ y 1))) z))"), Interpreter.DynamicEnvironment.empty(), out);
+        bytes.reset();
+        Interpreter.interpretBinding(Binding.parseString("(define x (f 3))"), env, out);
+        assertEquals("x = 4" + System.lineSeparator(), bytes.toString());
+    }
+
+    @Test
+    public void testOutputEvents() {
+        Output.Events events = new Output.Events();
+        Output.Memory memory = new Output.Memory();
+        Interpreter.DynamicEnvironment env = Interpreter.DynamicEnvironment.empty();
+        for (String s : new String[]{"(define (f y) (+ y 1))", "(define x (f 3))", "(cons x nil)", "(test (= x 4))"}) {
+            env = Interpreter.interpretBinding(Binding.parseString(s), env, events);
+            Interpreter.interpretBinding(Binding.parseString(s), env, memory);
+        }
+        assertEquals(4, events.getEvents().size());
+        assertEquals(new Output.Events.Event(Output.Events.Kind.FUNCTION_DEFINED, "f", null, null), events.getEvents().get(0));
+        assertEquals(new Output.Events.Event(Output.Events.Kind.VARIABLE_DEFINED, "x", Expression.ofInt(4), null), events.getEvents().get(1));
+        assertEquals(Output.Events.Kind.EXPRESSION_EVALUATED, events.getEvents().get(2).getKind());
+        assertEquals(Interpreter.interpretExpression(Expression.parseString("(cons 4 nil)")), events.getEvents().get(2).getValue());
+        assertEquals(Output.Events.Kind.TEST_PASSED, events.getEvents().get(3).getKind());
+        // the same bindings as text; passing tests print nothing
+        assertEquals("f is defined\nx = 4\n" + events.getEvents().get(2).getValue() + "\n", memory.getText());
+    }
+
+    @Test
+    public void testValuePrinter() {
+        Expression list = Interpreter.interpretExpression(Expression.parseString("(cons 1 (cons (cons 2 nil) (cons 3 nil)))"));
+        assertEquals("Expression.Cons(expression1=1, expression2=Expression.Cons(expression1=Expression.Cons(expression1=2, "
+                        + "expression2=Expression.Nil()), expression2=Expression.Cons(expression1=3, expression2=Expression.Nil())))",
+                list.toString());
+        assertEquals("Expression.Cons(expression1=1, expression2=Expression.Cons(expression1=..., expression2=...))",
+                new ValuePrinter(1, 2).toString(list));
+
+        // a million elements, without running out of stack
+        Expression big = Expression.nil();
+        for (int i = 0; i < 1000000; i++) {
+            big = Expression.cons(Expression.ofInt(i), big);
+        }
+        assertEquals(true, big.toString().endsWith("expression1=0, expression2=Expression.Nil()" + ")".repeat(1000000)));
+
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(define (f x) (+ x 1))"));
+        env = env.extendVariable("l", list);
+        assertEquals("Interpreter.DynamicEnvironment(map={f=Interpreter.DynamicEnvironment.Entry.FunctionEntry(funname=f), "
+                        + "l=Interpreter.DynamicEnvironment.Entry.VariableEntry(value=Expression.Cons(expression1=1, expression2=...))}, frame=null)",
+                new ValuePrinter(2, 1).toString(env));
+    }
+
+    @Test
+    public void testConsEqualsLongLists() {
+        Expression a = Expression.nil();
+        Expression b = Expression.nil();
+        Expression c = Expression.cons(Expression.ofInt(-1), Expression.nil());
+        for (int i = 0; i < 1000000; i++) {
+            a = Expression.cons(Expression.ofInt(i), a);
+            b = Expression.cons(Expression.ofInt(i), b);
+            c = Expression.cons(Expression.ofInt(i), c);
+        }
+        assertEquals(a, b);
+        assertEquals(a.hashCode(), b.hashCode());
+        // differs only at the far end
+        assertEquals(false, a.equals(c));
+        assertEquals(false, c.equals(a));
+
+        // lists nested in the first position, deeper than the stack
+        Expression d = Expression.nil();
+        Expression e = Expression.nil();
+        for (int i = 0; i < 100000; i++) {
+            d = Expression.cons(d, Expression.ofInt(i));
+            e = Expression.cons(e, Expression.ofInt(i));
+        }
+        assertEquals(d, e);
+        assertEquals(false, d.equals(Expression.cons(e, Expression.nil())));
+        assertEquals(Interpreter.interpretExpression(Expression.parseString("(cons 1 (cons true nil))")),
+                Expression.cons(Expression.ofInt(1), Expression.cons(Expression.ofBoolean(true), Expression.nil())));
+    }
+
     @Test
     public void testTestBindingPass() {
         // Who tests the tests??
@@ -536,6 +707,696 @@ public class Trefoil2Test {
         );
     }
 
+    @Test
+    public void testTailCallDeepLoop() {
+        // a million iterations would overflow the Java stack unless tail calls run in constant stack
+        String loopBinding =
+                "(define (loop n acc) " +
+                        "(if (= n 0) " +
+                        "    acc " +
+                        "    (let ((m (- n 1))) (loop m (+ acc 2)))))";
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(loopBinding));
+        assertEquals(
+                Expression.ofInt(2000000),
+                Interpreter.interpretExpression(Expression.parseString("(loop 1000000 0)"), env)
+        );
+    }
+
+    @Test
+    public void testBigIntegerPromotion() {
+        String factBinding = "(define (fact n) (if (= n 0) 1 (* n (fact (- n 1)))))";
+        Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(factBinding));
+        assertEquals(
+                Expression.ofBigInteger(new BigInteger("15511210043330985984000000")),
+                Interpreter.interpretExpression(Expression.parseString("(fact 25)"), env)
+        );
+        // results that fit in a long again are ordinary integers
+        assertEquals(
+                Expression.ofInt(0),
+                Interpreter.interpretExpression(Expression.parseString("(- (fact 25) (fact 25))"), env)
+        );
+        assertEquals(
+                Expression.ofBigInteger(new BigInteger("9223372036854775808")),
+                Interpreter.interpretExpression(Expression.parseString("(+ 9223372036854775807 1)"))
+        );
+    }
+
+    @Test
+    public void testLongSymbolSpansChunks() {
+        // longer than the reader's buffer, so the symbol is split across reads
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            name.append((char) ('a' + i % 26));
+        }
+        assertEquals(
+                new Expression.VariableReference(name.toString()),
+                Expression.parseString("  ; a comment\n" + name + "  ")
+        );
+    }
+
+    @Test
+    public void testTokenPositions() {
+        parser.Tokenizer tokenizer = parser.Tokenizer.tokenizeString("a ; comment\n  (bc");
+        assertEquals("Tokenizer.Token.SymbolToken(super=Tokenizer.Token(lineNumber=1, columnNumber=0), symbol=a)",
+                tokenizer.advance().toString());
+        assertEquals("Tokenizer.Token.PunctuationToken(super=Tokenizer.Token(lineNumber=2, columnNumber=2), punctuation=()",
+                tokenizer.advance().toString());
+        assertEquals("Tokenizer.Token.SymbolToken(super=Tokenizer.Token(lineNumber=2, columnNumber=3), symbol=bc)",
+                tokenizer.advance().toString());
+        assertEquals("Tokenizer.Token.EOFToken(super=Tokenizer.Token(lineNumber=2, columnNumber=5))",
+                tokenizer.advance().toString());
+    }
+
+    @Test
+    public void testTokenKindStream() {
+        parser.Tokenizer tokenizer = parser.Tokenizer.tokenizeString("(let ; comment\n foo)");
+        assertEquals(parser.Tokenizer.OPEN, tokenizer.advanceKind());
+        assertEquals(parser.Tokenizer.SYMBOL, tokenizer.advanceKind());
+        // symbols are interned, so they are the same object as the literal
+        assertSame("let", tokenizer.getSymbol());
+        assertEquals(parser.Tokenizer.SYMBOL, tokenizer.advanceKind());
+        assertEquals(16, tokenizer.getOffset());
+        assertEquals(3, tokenizer.getLength());
+        assertSame(parser.SymbolTable.intern("foo"), tokenizer.getSymbol());
+        assertEquals(parser.Tokenizer.CLOSE, tokenizer.advanceKind());
+        assertEquals(parser.Tokenizer.EOF, tokenizer.advanceKind());
+    }
+
+    @Test
+    public void testSymbolTableSkipsIntegers() {
+        int size = parser.SymbolTable.size();
+        for (int i = 0; i < 1000; i++) {
+            Expression.parseString("(+ " + (1000000 + i) + " -" + i + ")");
+        }
+        assertEquals(size, parser.SymbolTable.size());
+        // keywords are the Java literals themselves
+        assertSame("define", parser.SymbolTable.intern(new String("define")));
+    }
+
+    @Test
+    public void testIncrementalParser() {
+        parser.IncrementalPSTParser incremental = new parser.IncrementalPSTParser();
+        byte[] input = "(define x 3) ; h\u00e9llo (\n(f (g x)\n\u00e9t\u00e9)\nend".getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        List<ParenthesizedSymbolTree> psts = new ArrayList<>();
+        // feed one byte at a time, which splits symbols, comments, and multi-byte characters
+        for (byte b : input) {
+            incremental.feed(java.nio.ByteBuffer.wrap(new byte[]{b}));
+            if (psts.isEmpty()) {
+                psts.addAll(incremental.drainCompletedPSTs());
+                if (!psts.isEmpty()) {
+                    // emitted as soon as its closing paren arrived
+                    assertEquals(ParenthesizedSymbolTree.parseString("(define x 3)"), psts.get(0));
+                }
+            }
+        }
+        psts.addAll(incremental.drainCompletedPSTs());
+        // the symbol at the very end is not complete until finish()
+        assertEquals(2, psts.size());
+
+        incremental.finish();
+        psts.addAll(incremental.drainCompletedPSTs());
+
+        List<ParenthesizedSymbolTree> expected = new ArrayList<>();
+        parser.PSTParser p = parser.PSTParser.parseString(new String(input, java.nio.charset.StandardCharsets.UTF_8));
+        for (ParenthesizedSymbolTree pst = p.parse(); pst != null; pst = p.parse()) {
+            expected.add(pst);
+        }
+        assertEquals(expected, psts);
+    }
+
+    @Test
+    public void testIncrementalParserErrorsInOrder() {
+        parser.IncrementalPSTParser incremental = new parser.IncrementalPSTParser();
+        incremental.feed(java.nio.ByteBuffer.wrap("a ) b (c".getBytes(java.nio.charset.StandardCharsets.UTF_8)));
+        incremental.finish();
+        assertEquals(List.of(ParenthesizedSymbolTree.parseString("a")), incremental.drainCompletedPSTs());
+        try {
+            incremental.drainCompletedPSTs();
+            throw new AssertionError("expected a syntax error");
+        } catch (Trefoil2.TrefoilError.ParenthesizedSyntaxError e) {
+            assertEquals("Too many close parentheses: Tokenizer.Token.PunctuationToken(super=Tokenizer.Token(lineNumber=1, columnNumber=2), punctuation=))",
+                    e.getMessage());
+        }
+        assertEquals(List.of(ParenthesizedSymbolTree.parseString("b")), incremental.drainCompletedPSTs());
+        try {
+            incremental.drainCompletedPSTs();
+            throw new AssertionError("expected a syntax error");
+        } catch (Trefoil2.TrefoilError.ParenthesizedSyntaxError e) {
+            assertEquals("Unexpected EOF Tokenizer.Token.EOFToken(super=Tokenizer.Token(lineNumber=1, columnNumber=8))",
+                    e.getMessage());
+        }
+        assertEquals(true, incremental.isDrained());
+    }
+
+    @Test
+    public void testParallelParseMatchesSequential() {
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            program.append("(define x").append(i).append(" (+ ").append(i).append(" 1)) ; (not a form\n");
+            program.append("(define (f").append(i).append(" y) (let ((z (* y 2))) (cons z nil)))\n");
+            if (i % 100 == 0) {
+                program.append("oops ) (define)\n");
+            }
+        }
+        program.append("(f1 (f2 3)");  // unclosed at EOF
+
+        List<String> expected = new ArrayList<>();
+        parser.PSTParser sequential = parser.PSTParser.parseString(program.toString());
+        while (true) {
+            try {
+                ParenthesizedSymbolTree pst = sequential.parse();
+                if (pst == null) {
+                    break;
+                }
+                expected.add(Binding.parsePST(pst).toString());
+            } catch (Trefoil2.TrefoilError e) {
+                expected.add(e.getMessage());
+            }
+        }
+
+        List<String> actual = new ArrayList<>();
+        for (ParallelParser.Result result : ParallelParser.parse(program.toString().toCharArray())) {
+            try {
+                actual.add(result.get().toString());
+            } catch (Trefoil2.TrefoilError e) {
+                actual.add(e.getMessage());
+            }
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testAstCacheRoundTrip() {
+        List<Binding> bindings = new ArrayList<>();
+        bindings.add(Binding.parseString("(define x -300)"));
+        bindings.add(Binding.parseString("(define (f a b) (let ((c (* a 99999999999999999999))) (if (= c b) (cons c nil) (f (car a) (cdr b)))))"));
+        bindings.add(Binding.parseString("(test (= (max x 1 true) false))"));
+        bindings.add(Binding.parseString("(nil? (cons? y))"));
+        byte[] hash = AstCache.hash(new byte[]{1, 2, 3});
+
+        List<Binding> decoded = AstCache.decode(java.nio.ByteBuffer.wrap(AstCache.encode(bindings, hash)), hash);
+        assertEquals(bindings, decoded);
+        // lexical addresses are not part of equals, so check that they survived too
+        Binding.FunctionBinding f = (Binding.FunctionBinding) decoded.get(1);
+        Expression.ifStatement body = (Expression.ifStatement) ((Expression.let) f.getBody()).getExpression();
+        Expression.VariableReference b = (Expression.VariableReference) ((Expression.Equals) body.getCondition()).getRight();
+        assertEquals(1, b.getDepth());
+        assertEquals(1, b.getSlot());
+
+        // a cache for different source contents is not used
+        assertEquals(null, AstCache.decode(java.nio.ByteBuffer.wrap(AstCache.encode(bindings, hash)), AstCache.hash(new byte[0])));
+    }
+
+    @Test
+    public void testAstCacheFile() throws java.io.IOException {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("trefoil");
+        java.nio.file.Path source = dir.resolve("prog.trefoil");
+        byte[] v1 = "(define x 1)".getBytes();
+        byte[] v2 = "(define x 2)".getBytes();
+        try {
+            assertEquals(null, AstCache.load(source, v1));
+            AstCache.store(source, v1, List.of(Binding.parseString("(define x 1)")));
+            assertEquals(List.of(Binding.parseString("(define x 1)")), AstCache.load(source, v1));
+            // stale once the source changes
+            assertEquals(null, AstCache.load(source, v2));
+        } finally {
+            java.nio.file.Files.deleteIfExists(AstCache.cachePathFor(source));
+            java.nio.file.Files.deleteIfExists(dir);
+        }
+    }
+
+    public static String rangeBinding =
+            "(define (range n) " +
+                    "(if (= n 0) " +
+                    "    nil " +
+                    "    (cons n (range (- n 1)))))";
+    @Test
+    public void testClosureEngine() {
+        Interpreter.Engine previous = Interpreter.getEngine();
+        Interpreter.setEngine(Interpreter.Engine.CLOSURE);
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(rangeBinding));
+            env = Interpreter.interpretBinding(Binding.parseString("(define c 10)"), env);
+            env = Interpreter.interpretBinding(Binding.parseString("(define (f x) (+ x c))"), env);
+            env = Interpreter.interpretBinding(Binding.parseString("(define (g x) (f (f x)))"), env);
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (loop n acc) (if (= n 0) acc (let ((m (- n 1))) (loop m (+ acc n)))))"), env);
+            assertEquals(
+                    Interpreter.interpretExpression(Expression.parseString("(cons 2 (cons 1 nil))")),
+                    Interpreter.interpretExpression(Expression.parseString("(range 2)"), env)
+            );
+            assertEquals(Expression.ofInt(21), Interpreter.interpretExpression(Expression.parseString("(g 1)"), env));
+            // tail calls run in constant Java stack
+            assertEquals(
+                    Expression.ofInt(500000500000L),
+                    Interpreter.interpretExpression(Expression.parseString("(loop 1000000 0)"), env)
+            );
+
+            // one compiled expression, run against environments where f and c have been redefined:
+            // the lookups it cached for one top-level map are not used for another
+            ClosureCompiler.Node node = ClosureCompiler.compile(Expression.parseString("(+ c (f 1))"));
+            Interpreter.DynamicEnvironment before = env;
+            assertEquals(Expression.ofInt(21), node.execute(env));
+            assertEquals(Expression.ofInt(21), node.execute(env));
+            env = Interpreter.interpretBinding(Binding.parseString("(define (f x) (* x 100))"), env);
+            assertEquals(Expression.ofInt(110), node.execute(env));
+            env = Interpreter.interpretBinding(Binding.parseString("(define c 2)"), env);
+            assertEquals(Expression.ofInt(102), node.execute(env));
+            assertEquals(Expression.ofInt(21), node.execute(before));
+            // g still calls the f (and c) it was defined with
+            assertEquals(Expression.ofInt(21), Interpreter.interpretExpression(Expression.parseString("(g 1)"), env));
+        } finally {
+            Interpreter.setEngine(previous);
+        }
+    }
+
+    @Test
+    public void testStackEngineDeepRecursion() {
+        // far deeper than the Java stack allows for non-tail recursion
+        Interpreter.Engine previous = Interpreter.getEngine();
+        Interpreter.setEngine(Interpreter.Engine.STACK);
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(rangeBinding));
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (sum l) (if (nil? l) 0 (+ (car l) (sum (cdr l)))))"), env);
+            assertEquals(
+                    Expression.ofInt(1800030000),
+                    Interpreter.interpretExpression(Expression.parseString("(sum (range 60000))"), env)
+            );
+        } finally {
+            Interpreter.setEngine(previous);
+        }
+    }
+
+    @Test(expected = Trefoil2.TrefoilError.RuntimeError.class)
+    public void testStackEngineBudgetExceeded() {
+        Interpreter.Engine previous = Interpreter.getEngine();
+        int previousDepth = StackMachine.getMaxDepth();
+        Interpreter.setEngine(Interpreter.Engine.STACK);
+        StackMachine.setMaxDepth(1000);
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(rangeBinding));
+            Interpreter.interpretExpression(Expression.parseString("(range 2000)"), env);
+        } finally {
+            Interpreter.setEngine(previous);
+            StackMachine.setMaxDepth(previousDepth);
+        }
+    }
+
+    @Test
+    public void testBytecodeEngine() {
+        Interpreter.Engine previous = Interpreter.getEngine();
+        Interpreter.setEngine(Interpreter.Engine.BYTECODE);
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(rangeBinding));
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (sum l) (if (nil? l) 0 (+ (car l) (sum (cdr l)))))"), env);
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (loop n acc) (if (= n 0) acc (let ((m (- n 1))) (loop m (+ acc n)))))"), env);
+            // non-tail recursion runs on VM frames rather than the Java stack
+            assertEquals(
+                    Expression.ofInt(1800030000),
+                    Interpreter.interpretExpression(Expression.parseString("(sum (range 60000))"), env)
+            );
+            // tail calls out of a let reuse the VM frame
+            assertEquals(
+                    Expression.ofInt(500000500000L),
+                    Interpreter.interpretExpression(Expression.parseString("(loop 1000000 0)"), env)
+            );
+            // sibling lets share a local, and nested ones see the outer ones and the parameters
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (f x) (cons (let ((y (+ x 1))) (let ((z (* y 2))) (cons y z))) (let ((y 7)) (- y x))))"), env);
+            assertEquals(
+                    Interpreter.interpretExpression(Expression.parseString("(cons (cons 4 8) 4)")),
+                    Interpreter.interpretExpression(Expression.parseString("(f 3)"), env)
+            );
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (g x) (let ((y (+ x 1))) (let ((x (* y 2))) (let ((y (- x y))) (+ x (* 10 y))))))"), env);
+            assertEquals(Expression.ofInt(4 * 2 + 10 * (8 - 4)), Interpreter.interpretExpression(Expression.parseString("(g 3)"), env));
+            // unboxed arithmetic that overflows a long goes on with BigIntegers
+            assertEquals(
+                    Expression.ofBigInteger(BigInteger.valueOf(Long.MAX_VALUE).add(BigInteger.ONE)),
+                    Interpreter.interpretExpression(Expression.parseString("(+ 9223372036854775806 (- 3 1))"), env)
+            );
+            assertEquals(
+                    Expression.ofBigInteger(BigInteger.valueOf(Long.MIN_VALUE).subtract(BigInteger.ONE)),
+                    Interpreter.interpretExpression(Expression.parseString("(let ((m (- 0 9223372036854775807))) (- (- m 1) 1))"), env)
+            );
+            assertEquals(Expression.ofBoolean(true), Interpreter.interpretExpression(Expression.parseString("(= (car (range 3)) 3)"), env));
+        } finally {
+            Interpreter.setEngine(previous);
+        }
+    }
+
+    @Test
+    public void testJvmEngine() {
+        Interpreter.Engine previous = Interpreter.getEngine();
+        Interpreter.setEngine(Interpreter.Engine.JVM);
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(rangeBinding));
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (fact n) (if (= n 0) 1 (* n (fact (- n 1)))))"), env);
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (loop n acc) (if (= n 0) acc (let ((m (- n 1))) (loop m (+ acc n)))))"), env);
+            assertEquals(
+                    Expression.ofInt(3628800),
+                    Interpreter.interpretExpression(Expression.parseString("(fact 10)"), env)
+            );
+            assertEquals(
+                    Expression.ofInt(500000500000L),
+                    Interpreter.interpretExpression(Expression.parseString("(loop 1000000 0)"), env)
+            );
+            // overflows a long, so the tree walker redoes it with BigIntegers
+            assertEquals(
+                    Expression.ofBigInteger(new BigInteger("15511210043330985984000000")),
+                    Interpreter.interpretExpression(Expression.parseString("(fact 25)"), env)
+            );
+            // not a numeric function, so it is only interpreted
+            assertEquals(
+                    Interpreter.interpretExpression(Expression.parseString("(cons 2 (cons 1 nil))")),
+                    Interpreter.interpretExpression(Expression.parseString("(range 2)"), env)
+            );
+            assertEquals(true, env.getFunction("fact").getKernel() != null);
+            assertEquals(null, JvmCompiler.invoke(env.getFunction("range"), new Expression[]{Expression.ofInt(2)}));
+        } finally {
+            Interpreter.setEngine(previous);
+        }
+    }
+
+    @Test
+    public void testJvmEngineOverflowDropsKernel() {
+        Interpreter.Engine previous = Interpreter.getEngine();
+        Interpreter.setEngine(Interpreter.Engine.JVM);
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (fact n) (if (= n 0) 1 (* n (fact (- n 1)))))"));
+            Interpreter.DynamicEnvironment.Entry.FunctionEntry fact = env.getFunction("fact");
+            assertEquals(Expression.ofInt(120), JvmCompiler.invoke(fact, new Expression[]{Expression.ofInt(5)}));
+            JvmCompiler.Kernel compiled = fact.getKernel();
+            int[] entered = {0};
+            fact.setKernel(args -> {
+                entered[0]++;
+                return compiled.call(args);
+            });
+            assertEquals(
+                    Expression.ofBigInteger(new BigInteger("265252859812191058636308480000000")),
+                    Interpreter.interpretExpression(Expression.parseString("(fact 30)"), env)
+            );
+            // the recursive calls that redo it with BigIntegers do not try the kernel again
+            assertEquals(1, entered[0]);
+            assertEquals(null, JvmCompiler.invoke(fact, new Expression[]{Expression.ofInt(5)}));
+            assertEquals(1, entered[0]);
+        } finally {
+            Interpreter.setEngine(previous);
+        }
+    }
+
+    @Test
+    public void testTieredEngine() {
+        Interpreter.Engine previous = Interpreter.getEngine();
+        int previousThreshold = Tiering.getThreshold();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        Interpreter.setEngine(Interpreter.Engine.TIERED);
+        Tiering.setThreshold(50);
+        Tiering.setLog(new PrintStream(log, true));
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(rangeBinding));
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (fib n) (if (= n 0) 0 (if (= n 1) 1 (+ (fib (- n 1)) (fib (- n 2))))))"), env);
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (double n) (* 2 n))"), env);
+
+            // cold: a handful of calls stay interpreted
+            assertEquals(Expression.ofInt(5), Interpreter.interpretExpression(Expression.parseString("(fib 5)"), env));
+            assertEquals(Tiering.Tier.INTERPRETED, env.getFunction("fib").getTier());
+
+            // hot: fib calls itself, so its back edges promote it partway through the call
+            assertEquals(Expression.ofInt(6765), Interpreter.interpretExpression(Expression.parseString("(fib 20)"), env));
+            assertEquals(Tiering.Tier.JVM, env.getFunction("fib").getTier());
+            assertEquals(true, env.getFunction("fib").getBackEdges() > 0);
+
+            // not numeric, so it goes to the closure compiler instead
+            assertEquals(
+                    Interpreter.interpretExpression(Expression.parseString("(cons 2 (cons 1 nil))")),
+                    Interpreter.interpretExpression(Expression.parseString("(range 2)"), env)
+            );
+            Interpreter.interpretExpression(Expression.parseString("(range 100)"), env);
+            assertEquals(Tiering.Tier.CLOSURE, env.getFunction("range").getTier());
+
+            // promoted by invocations alone, with no back edges
+            for (int i = 0; i < 50; i++) {
+                assertEquals(Expression.ofInt(2 * i), Interpreter.interpretExpression(Expression.parseString("(double " + i + ")"), env));
+            }
+            assertEquals(Tiering.Tier.JVM, env.getFunction("double").getTier());
+            assertEquals(0, env.getFunction("double").getBackEdges());
+
+            assertEquals(
+                    "tier: fib promoted to jvm after 2 invocations and 48 back edges\n" +
+                    "tier: range promoted to closure after 2 invocations and 48 back edges\n" +
+                    "tier: double promoted to jvm after 50 invocations and 0 back edges\n",
+                    log.toString().replace(System.lineSeparator(), "\n")
+            );
+        } finally {
+            Interpreter.setEngine(previous);
+            Tiering.setThreshold(previousThreshold);
+            Tiering.setLog(null);
+        }
+    }
+
+    @Test
+    public void testTieredEngineCallsFromClosureTier() {
+        Interpreter.Engine previous = Interpreter.getEngine();
+        int previousThreshold = Tiering.getThreshold();
+        Interpreter.setEngine(Interpreter.Engine.TIERED);
+        Tiering.setThreshold(10);
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(rangeBinding));
+            env = Interpreter.interpretBinding(Binding.parseString("(define (square x) (* x x))"), env);
+            env = Interpreter.interpretBinding(Binding.parseString(
+                    "(define (sum-squares l) (if (nil? l) 0 (+ (square (car l)) (sum-squares (cdr l)))))"), env);
+
+            // sum-squares goes to the closure tier on its 10th call, having called square only 9 times;
+            // the rest of the calls of square come from closure-compiled code, and still promote it
+            assertEquals(Expression.ofInt(338350), Interpreter.interpretExpression(Expression.parseString("(sum-squares (range 100))"), env));
+            assertEquals(Tiering.Tier.CLOSURE, env.getFunction("sum-squares").getTier());
+            assertEquals(Tiering.Tier.JVM, env.getFunction("square").getTier());
+            assertEquals(10, env.getFunction("square").getInvocations());
+            assertEquals(Expression.ofInt(338350), Interpreter.interpretExpression(Expression.parseString("(sum-squares (range 100))"), env));
+        } finally {
+            Interpreter.setEngine(previous);
+            Tiering.setThreshold(previousThreshold);
+        }
+    }
+
+    @Test
+    public void testOptimizerFolds() {
+        assertEquals(Expression.parseString("7"), Optimizer.optimize(Expression.parseString("(+ 3 4)")));
+        assertEquals(Expression.parseString("true"), Optimizer.optimize(Expression.parseString("(= (* 2 3) 6)")));
+        assertEquals(Expression.parseString("a"), Optimizer.optimize(Expression.parseString("(if (= 1 1) a b)")));
+        assertEquals(Expression.parseString("b"), Optimizer.optimize(Expression.parseString("(if false a b)")));
+        assertEquals(Expression.parseString("x"), Optimizer.optimize(Expression.parseString("(car (cons x 2))")));
+        assertEquals(Expression.parseString("y"), Optimizer.optimize(Expression.parseString("(cdr (cons 1 y))")));
+        assertEquals(Expression.parseString("(+ y 6)"),
+                Optimizer.optimize(Expression.parseString("(let ((x 5)) (+ y (+ x 1)))")));
+        assertEquals(Expression.parseString("9"), Optimizer.optimize(Expression.parseString("(max 3 (+ 4 5) 1)")));
+
+        // shadowing stops the substitution
+        assertEquals(Expression.parseString("(let ((x y)) (+ x 1))"),
+                Optimizer.optimize(Expression.parseString("(let ((x 5)) (let ((x y)) (+ x 1)))")));
+        // the let must stay to make the call to x an error
+        assertEquals(Expression.parseString("(let ((x 5)) (x 1))"),
+                Optimizer.optimize(Expression.parseString("(let ((x 5)) (x 1))")));
+        // dropping (+ 1 true) or y would lose their errors
+        assertEquals(Expression.parseString("(+ 1 true)"), Optimizer.optimize(Expression.parseString("(+ 1 true)")));
+        assertEquals(Expression.parseString("(car (cons 1 y))"),
+                Optimizer.optimize(Expression.parseString("(car (cons 1 y))")));
+    }
+
+    @Test
+    public void testOptimizerInBindings() {
+        boolean previous = Optimizer.isEnabled();
+        Optimizer.setEnabled(true);
+        try {
+            Binding b = Binding.parseString("(define (f x) (let ((k (* 2 3))) (if (= k 6) (+ x k) nil)))");
+            assertEquals(Expression.parseString("(+ x 6)"), ((Binding.FunctionBinding) b).getBody());
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(b);
+            // x is still resolved to the parameter after the let is gone
+            assertEquals(Expression.ofInt(10), Interpreter.interpretExpression(Expression.parseString("(f 4)"), env));
+        } finally {
+            Optimizer.setEnabled(previous);
+        }
+    }
+
+    @Test(expected = Trefoil2.TrefoilError.RuntimeError.class)
+    public void testOptimizerKeepsRuntimeErrors() {
+        boolean previous = Optimizer.isEnabled();
+        Optimizer.setEnabled(true);
+        try {
+            Interpreter.interpretBinding(Binding.parseString("(define z (+ 1 true))"));
+        } finally {
+            Optimizer.setEnabled(previous);
+        }
+    }
+
+    private static Expression bodyOf(Interpreter.DynamicEnvironment env, String funname) {
+        return ((Interpreter.DynamicEnvironment.Entry.FunctionEntry) env.getMap().get(funname)).getFunctionBinding().getBody();
+    }
+
+    @Test
+    public void testOptimizerInlines() {
+        boolean previous = Optimizer.isEnabled();
+        Optimizer.setEnabled(true);
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.DynamicEnvironment.empty();
+            for (String s : new String[]{
+                    "(define c 1)",
+                    "(define (inc x) (+ x 1))",
+                    "(define (add-c y) (+ y c))",
+                    "(define (countdown n) (if (= n 0) 0 (countdown (- n 1))))",
+                    "(define (g y) (+ y (inc 4)))",
+                    "(define (m c) (add-c c))",
+                    "(define (start n) (countdown n))",
+                    "(define c 2)",
+                    "(define (k z) (add-c z))"}) {
+                env = Interpreter.interpretBinding(Binding.parseString(s), env);
+            }
+            // inlined, then folded
+            assertEquals(Expression.parseString("(+ y 5)"), bodyOf(env, "g"));
+            // c would be captured by the parameter of m
+            assertEquals(Expression.parseString("(add-c c)"), bodyOf(env, "m"));
+            // countdown is recursive
+            assertEquals(Expression.parseString("(countdown n)"), bodyOf(env, "start"));
+            // c has been redefined since add-c was defined
+            assertEquals(Expression.parseString("(add-c z)"), bodyOf(env, "k"));
+
+            assertEquals(Expression.ofInt(3), Interpreter.interpretExpression(Expression.parseString("(inc (inc 1))"), env));
+            assertEquals(Expression.ofInt(11), Interpreter.interpretExpression(Expression.parseString("(m 10)"), env));
+            assertEquals(Expression.ofInt(11), Interpreter.interpretExpression(Expression.parseString("(k 10)"), env));
+            assertEquals(Expression.ofInt(0), Interpreter.interpretExpression(Expression.parseString("(start 5)"), env));
+            env = Interpreter.interpretBinding(Binding.parseString("(define (h y) (let ((x (inc y))) (* x (inc x))))"), env);
+            assertEquals(Expression.ofInt(12), Interpreter.interpretExpression(Expression.parseString("(h 2)"), env));
+
+            // memoized calls have to stay calls, to be cached
+            Memoizer.setMemoized("inc", true);
+            env = Interpreter.interpretBinding(Binding.parseString("(define (g2 y) (inc y))"), env);
+            assertEquals(Expression.parseString("(inc y)"), bodyOf(env, "g2"));
+        } finally {
+            Memoizer.setMemoized("inc", false);
+            Optimizer.setEnabled(previous);
+        }
+    }
+
+    @Test
+    public void testMemoization() {
+        Interpreter.Engine previous = Interpreter.getEngine();
+        int previousCapacity = Memoizer.getCapacity();
+        int previousThreshold = Tiering.getThreshold();
+        Memoizer.setMemoized("fib", true);
+        // low enough that fib is promoted halfway through (fib 20)
+        Tiering.setThreshold(10);
+        try {
+            for (Interpreter.Engine engine : new Interpreter.Engine[]{
+                    Interpreter.Engine.TREE, Interpreter.Engine.CLOSURE, Interpreter.Engine.JVM, Interpreter.Engine.TIERED}) {
+                Interpreter.setEngine(engine);
+                Memoizer.clear();
+                Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(
+                        "(define (fib n) (if (= n 0) 0 (if (= n 1) 1 (+ (fib (- n 1)) (fib (- n 2))))))"));
+                assertEquals(Expression.ofInt(6765), Interpreter.interpretExpression(Expression.parseString("(fib 20)"), env));
+                // each of (fib 20) ... (fib 0) is computed once; (fib (- n 2)) hits from n = 3 on
+                assertEquals(21, Memoizer.getMisses());
+                assertEquals(18, Memoizer.getHits());
+                assertEquals(Expression.ofInt(6765), Interpreter.interpretExpression(Expression.parseString("(fib 20)"), env));
+                assertEquals(19, Memoizer.getHits());
+                // would take hours without the cache
+                assertEquals(Expression.ofInt(1548008755920L), Interpreter.interpretExpression(Expression.parseString("(fib 60)"), env));
+                if (engine == Interpreter.Engine.TIERED) {
+                    assertEquals(Tiering.Tier.CLOSURE, env.getFunction("fib").getTier());
+                }
+
+                // a new definition does not see the old one's results
+                env = Interpreter.interpretBinding(Binding.parseString("(define (fib n) n)"), env);
+                assertEquals(Expression.ofInt(20), Interpreter.interpretExpression(Expression.parseString("(fib 20)"), env));
+                assertEquals(62, Memoizer.getMisses());
+            }
+
+            Memoizer.clear();
+            Memoizer.setCapacity(2);
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString("(define (fib n) (cons n nil))"));
+            for (String s : new String[]{"(fib 1)", "(fib 2)", "(fib 1)", "(fib 3)", "(fib 1)", "(fib 2)"}) {
+                Interpreter.interpretExpression(Expression.parseString(s), env);
+            }
+            // (fib 3) evicted (fib 2), the least recently used, but not (fib 1)
+            assertEquals(2, Memoizer.getHits());
+            assertEquals(4, Memoizer.getMisses());
+            assertEquals(2, Memoizer.size());
+        } finally {
+            Interpreter.setEngine(previous);
+            Tiering.setThreshold(previousThreshold);
+            Memoizer.setMemoized("fib", false);
+            Memoizer.setCapacity(previousCapacity);
+            Memoizer.clear();
+        }
+    }
+
+    @Test
+    public void testParallelEvaluation() {
+        Interpreter.Engine previous = Interpreter.getEngine();
+        boolean previousParallel = Parallel.isEnabled();
+        int previousParallelism = Parallel.getParallelism();
+        Interpreter.setEngine(Interpreter.Engine.TREE);
+        Parallel.setEnabled(true);
+        // enough workers to fork, even on a single processor
+        Parallel.setParallelism(4);
+        try {
+            Interpreter.DynamicEnvironment env = Interpreter.interpretBinding(Binding.parseString(rangeBinding));
+            for (String s : new String[]{
+                    "(define (fib n) (if (= n 0) 0 (if (= n 1) 1 (+ (fib (- n 1)) (fib (- n 2))))))",
+                    "(define (not-a-number x) (+ x true))",
+                    "(define (not-a-list x) (car x))"}) {
+                env = Interpreter.interpretBinding(Binding.parseString(s), env);
+            }
+            assertEquals(Expression.ofInt(6765), Interpreter.interpretExpression(Expression.parseString("(fib 20)"), env));
+            assertEquals(
+                    Interpreter.interpretExpression(Expression.parseString("(cons (cons 2 (cons 1 nil)) 55)")),
+                    Interpreter.interpretExpression(Expression.parseString("(cons (range 2) (fib 10))"), env)
+            );
+
+            // the leftmost error wins, however the evaluations are scheduled
+            Expression e = Expression.parseString("(cons (fib 12) (cons (not-a-number 1) (not-a-list 1)))");
+            for (int i = 0; i < 20; i++) {
+                Interpreter.DynamicEnvironment finalEnv = env;
+                Trefoil2.TrefoilError.RuntimeError error = assertThrows(Trefoil2.TrefoilError.RuntimeError.class,
+                        () -> Interpreter.interpretExpression(e, finalEnv));
+                assertEquals(true, error.getMessage().contains("plus"));
+            }
+        } finally {
+            Interpreter.setEngine(previous);
+            Parallel.setEnabled(previousParallel);
+            Parallel.setParallelism(previousParallelism);
+        }
+    }
+
+    @Test
+    public void testJobRunner() {
+        try (JobRunner runner = new JobRunner(rangeBinding + "(define (inc x) (+ x 1))")) {
+            List<String> programs = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                programs.add("(define y (inc " + i + "))\n(range y)");
+            }
+            programs.add("y");
+            List<JobRunner.Result> results = runner.runAll(programs);
+            for (int i = 0; i < 50; i++) {
+                assertEquals("y = " + (i + 1) + "\n" + Interpreter.interpretExpression(
+                        Expression.parseString("(range " + (i + 1) + ")"), runner.getPrelude()) + "\n",
+                        results.get(i).getOutput().replace(System.lineSeparator(), "\n"));
+            }
+            // jobs do not see each other's definitions, and errors go to the job's output
+            assertEquals("the variable y is unbounded\n", results.get(50).getOutput().replace(System.lineSeparator(), "\n"));
+            assertEquals(Expression.ofInt(10), results.get(9).getEnvironment().getVariable("y"));
+            assertEquals(null, runner.getPrelude().getMap().get("y"));
+        }
+    }
+
     // My own feature tests
     @Test
     public void testMax() {